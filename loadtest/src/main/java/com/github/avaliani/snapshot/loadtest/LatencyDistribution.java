@@ -0,0 +1,67 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.util.Random;
+
+/**
+ * A distribution of simulated snapshot service latencies. Specified as:
+ *
+ * <ul>
+ *   <li>"fixed:{millis}"</li>
+ *   <li>"uniform:{minMillis}-{maxMillis}"</li>
+ *   <li>"exponential:{meanMillis}"</li>
+ *   <li>"lognormal:{medianMillis}:{sigma}" - a long tailed distribution, similar to real
+ *     rendering latencies.</li>
+ * </ul>
+ *
+ * @author avaliani
+ *
+ */
+public abstract class LatencyDistribution {
+
+    public abstract long nextMillis(Random random);
+
+    public static LatencyDistribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        try {
+            if (parts[0].equals("fixed")) {
+                final long millis = Long.parseLong(parts[1]);
+                return new LatencyDistribution() {
+                    @Override
+                    public long nextMillis(Random random) {
+                        return millis;
+                    }
+                };
+            } else if (parts[0].equals("uniform")) {
+                String[] range = parts[1].split("-");
+                final long min = Long.parseLong(range[0]);
+                final long max = Long.parseLong(range[1]);
+                return new LatencyDistribution() {
+                    @Override
+                    public long nextMillis(Random random) {
+                        return min + (long) (random.nextDouble() * (max - min));
+                    }
+                };
+            } else if (parts[0].equals("exponential")) {
+                final double mean = Double.parseDouble(parts[1]);
+                return new LatencyDistribution() {
+                    @Override
+                    public long nextMillis(Random random) {
+                        return (long) (-mean * Math.log(1 - random.nextDouble()));
+                    }
+                };
+            } else if (parts[0].equals("lognormal")) {
+                final double mu = Math.log(Double.parseDouble(parts[1]));
+                final double sigma = Double.parseDouble(parts[2]);
+                return new LatencyDistribution() {
+                    @Override
+                    public long nextMillis(Random random) {
+                        return (long) Math.exp(mu + sigma * random.nextGaussian());
+                    }
+                };
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec, e);
+        }
+        throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+    }
+}
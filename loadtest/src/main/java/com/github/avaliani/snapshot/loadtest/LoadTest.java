@@ -0,0 +1,110 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import com.github.avaliani.snapshot.AjaxSnapshotsSnapshotService;
+import com.github.avaliani.snapshot.MapFilterConfig;
+import com.github.avaliani.snapshot.PrerenderSnapshotService;
+import com.github.avaliani.snapshot.SeoFilterConfig;
+import com.google.common.collect.Maps;
+
+/**
+ * Measures end to end SEO filter throughput without a real snapshotting service.
+ *
+ * <p>Starts a {@link StubSnapshotProvider}, a {@link LoadTestServer} whose SEO filter is
+ * pointed at the stub, and replays synthetic or access log traffic against the server.
+ * Options are passed as "--name=value":
+ *
+ * <ul>
+ *   <li>provider - "ajaxsnapshots" or "prerender". Default "ajaxsnapshots".</li>
+ *   <li>latency - stub rendering latency, see {@link LatencyDistribution}. Default
+ *     "lognormal:800:0.5".</li>
+ *   <li>failureRate - fraction of stub requests that fail. Default 0.01.</li>
+ *   <li>bodySize - size in bytes of stub snapshots. Default 50000.</li>
+ *   <li>accessLog - combined log format access log to replay. If not set synthetic
+ *     traffic is generated.</li>
+ *   <li>requests, crawlerRatio, pages - number of synthetic requests, fraction made by
+ *     crawlers and number of distinct pages. Default 2000, 0.3 and 500.</li>
+ *   <li>concurrency - number of concurrent clients. Default 32.</li>
+ *   <li>serverThreads - maximum number of container threads. Default 200.</li>
+ *   <li>filter.{name} - SEO filter init parameter, e.g. "--filter.maxConcurrentSnapshots=8".</li>
+ * </ul>
+ *
+ * @author avaliani
+ *
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Maps.newHashMap();
+        Map<String, String> filterParameters = Maps.newHashMap();
+        for (String arg : args) {
+            String[] nameValue = arg.replaceFirst("^--", "").split("=", 2);
+            String value = (nameValue.length == 2) ? nameValue[1] : "true";
+            if (nameValue[0].startsWith("filter.")) {
+                filterParameters.put(nameValue[0].substring("filter.".length()), value);
+            } else {
+                options.put(nameValue[0], value);
+            }
+        }
+
+        StubSnapshotProvider provider = new StubSnapshotProvider(
+                LatencyDistribution.parse(getOption(options, "latency", "lognormal:800:0.5")),
+                Double.parseDouble(getOption(options, "failureRate", "0.01")),
+                Integer.parseInt(getOption(options, "bodySize", "50000")));
+        provider.start(0);
+
+        if (getOption(options, "provider", "ajaxsnapshots").equals("prerender")) {
+            setDefault(filterParameters, "snapshotService", PrerenderSnapshotService.class.getName());
+            setDefault(filterParameters, "snapshotServiceUrl", "localhost:" + provider.getPort() + "/");
+        } else {
+            setDefault(filterParameters, "snapshotService", AjaxSnapshotsSnapshotService.class.getName());
+            setDefault(filterParameters, "snapshotServiceUrl", "localhost:" + provider.getPort() + "/makeSnapshot");
+        }
+        setDefault(filterParameters, "snapshotServiceToken", "loadtest");
+
+        LoadTestServer server = new LoadTestServer(0, filterParameters,
+                Integer.parseInt(getOption(options, "serverThreads", "200")));
+        server.start();
+
+        List<TrafficRequest> requests;
+        String accessLog = options.get("accessLog");
+        if (accessLog != null) {
+            SeoFilterConfig seoFilterConfig = new SeoFilterConfig(new MapFilterConfig("SeoFilter", filterParameters));
+            requests = TrafficGenerator.accessLogRequests(new File(accessLog),
+                    seoFilterConfig.getCrawlerUserAgents());
+        } else {
+            requests = TrafficGenerator.syntheticRequests(
+                    Integer.parseInt(getOption(options, "requests", "2000")),
+                    Double.parseDouble(getOption(options, "crawlerRatio", "0.3")),
+                    Integer.parseInt(getOption(options, "pages", "500")),
+                    0);
+        }
+
+        try {
+            TrafficGenerator generator = new TrafficGenerator("http://localhost:" + server.getPort(), requests,
+                    Integer.parseInt(getOption(options, "concurrency", "32")));
+            LoadTestReport report = generator.run(server);
+            report.print(System.out);
+            System.out.printf("stub provider requests:      %d (%d failed)%n",
+                    provider.getPrerenderRequests() + provider.getAjaxSnapshotsRequests(),
+                    provider.getFailedRequests());
+        } finally {
+            server.stop();
+            provider.stop();
+        }
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private static void setDefault(Map<String, String> parameters, String name, String value) {
+        if (!parameters.containsKey(name)) {
+            parameters.put(name, value);
+        }
+    }
+}
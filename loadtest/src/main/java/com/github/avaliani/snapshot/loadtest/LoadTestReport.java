@@ -0,0 +1,98 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput, latency and thread usage measured by a {@link TrafficGenerator} run.
+ *
+ * @author avaliani
+ *
+ */
+public class LoadTestReport {
+
+    private final List<TrafficRequest> requests;
+    private final long[] latencyNanos;
+    private final int[] statusCodes;
+    private long startNanos;
+    private long elapsedNanos;
+    private volatile int peakBusyThreads;
+
+    LoadTestReport(List<TrafficRequest> requests) {
+        this.requests = requests;
+        latencyNanos = new long[requests.size()];
+        statusCodes = new int[requests.size()];
+    }
+
+    void start() {
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        startNanos = System.nanoTime();
+    }
+
+    void finish() {
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Each index is written by a single client thread. The executor's termination makes the
+     * writes visible to the thread that prints the report.
+     */
+    void record(int index, long latency, int statusCode) {
+        latencyNanos[index] = latency;
+        statusCodes[index] = statusCode;
+    }
+
+    void sampleBusyThreads(int busyThreads) {
+        if (busyThreads > peakBusyThreads) {
+            peakBusyThreads = busyThreads;
+        }
+    }
+
+    public void print(PrintStream out) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        int errors = 0;
+        for (int statusCode : statusCodes) {
+            if ((statusCode < 200) || (statusCode >= 400)) {
+                errors++;
+            }
+        }
+        out.printf("requests:              %d (%d errors)%n", requests.size(), errors);
+        out.printf("elapsed:               %.2f s%n", elapsedSeconds);
+        out.printf("throughput:            %.1f requests/s%n", requests.size() / elapsedSeconds);
+        printLatencies(out, "all", null);
+        printLatencies(out, "crawler", Boolean.TRUE);
+        printLatencies(out, "human", Boolean.FALSE);
+        out.printf("peak busy container threads: %d%n", peakBusyThreads);
+        out.printf("peak jvm threads:            %d%n", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    private void printLatencies(PrintStream out, String label, Boolean crawler) {
+        long[] latencies = new long[requests.size()];
+        int count = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            if ((crawler == null) || (crawler.booleanValue() == requests.get(i).isCrawler())) {
+                latencies[count++] = latencyNanos[i];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        latencies = Arrays.copyOf(latencies, count);
+        Arrays.sort(latencies);
+        out.printf("%-8s latency (ms): p50 %d, p90 %d, p99 %d, max %d (%d requests)%n", label,
+                toMillis(percentile(latencies, 0.50)), toMillis(percentile(latencies, 0.90)),
+                toMillis(percentile(latencies, 0.99)), toMillis(latencies[count - 1]), count);
+    }
+
+    private static long percentile(long[] sortedValues, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, index)];
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
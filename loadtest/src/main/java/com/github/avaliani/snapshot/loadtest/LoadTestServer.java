@@ -0,0 +1,83 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.github.avaliani.snapshot.SeoFilter;
+
+/**
+ * An embedded Jetty servlet container running the {@link SeoFilter} in front of a trivial
+ * application servlet.
+ *
+ * @author avaliani
+ *
+ */
+public class LoadTestServer {
+
+    private static final String APP_PAGE =
+            "<html><head><script src=\"/app.js\"></script></head><body></body></html>";
+
+    private final Server server;
+    private final QueuedThreadPool threadPool;
+
+    /**
+     * @param filterParameters the SeoFilter init parameters.
+     * @param maxThreads the maximum number of container request threads.
+     */
+    public LoadTestServer(int port, Map<String, String> filterParameters, int maxThreads) {
+        server = new Server(port);
+        threadPool = new QueuedThreadPool(maxThreads);
+        server.setThreadPool(threadPool);
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        FilterHolder seoFilter = new FilterHolder(SeoFilter.class);
+        seoFilter.setInitParameters(filterParameters);
+        context.addFilter(seoFilter, "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(AppServlet.class, "/*");
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public int getPort() {
+        return server.getConnectors()[0].getLocalPort();
+    }
+
+    /**
+     * @return the number of container threads currently serving requests.
+     */
+    public int getBusyThreads() {
+        return threadPool.getThreads() - threadPool.getIdleThreads();
+    }
+
+    public static class AppServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException {
+            response.setContentType("text/html; charset=UTF-8");
+            response.getWriter().write(APP_PAGE);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand in for a snapshotting service provider. Understands both the
+ * prerender.io request shape ("GET /{url}" with an "X-Prerender-Token" header) and the
+ * ajaxsnapshots.com request shape ("GET /makeSnapshot?url={url}" with an "X-AJS-APIKEY"
+ * header), and answers with a generated page after a simulated rendering latency.
+ *
+ * @author avaliani
+ *
+ */
+public class StubSnapshotProvider {
+
+    private final LatencyDistribution latency;
+    private final double failureRate;
+    private final int bodySize;
+    private final Random random = new Random();
+
+    private final AtomicLong prerenderRequests = new AtomicLong();
+    private final AtomicLong ajaxSnapshotsRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param latency the distribution of simulated rendering latencies.
+     * @param failureRate the fraction of requests, between 0 and 1, answered with a 503.
+     * @param bodySize the size in bytes of generated snapshot bodies.
+     */
+    public StubSnapshotProvider(LatencyDistribution latency, double failureRate, int bodySize) {
+        this.latency = latency;
+        this.failureRate = failureRate;
+        this.bodySize = bodySize;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleSnapshotRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleSnapshotRequest(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("X-AJS-APIKEY")) {
+            ajaxSnapshotsRequests.incrementAndGet();
+        } else {
+            prerenderRequests.incrementAndGet();
+        }
+
+        long latencyMillis;
+        boolean fail;
+        synchronized (random) {
+            latencyMillis = latency.nextMillis(random);
+            fail = random.nextDouble() < failureRate;
+        }
+        try {
+            Thread.sleep(Math.max(0, latencyMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (fail) {
+            failedRequests.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        byte[] body = generateBody(exchange.getRequestURI().toString());
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.flush();
+    }
+
+    private byte[] generateBody(String requestUri) throws IOException {
+        String head = "<html><head><title>" + requestUri + "</title></head><body><p>";
+        String tail = "</p></body></html>";
+        int fillerLength = Math.max(0, bodySize - head.length() - tail.length());
+        char[] filler = new char[fillerLength];
+        Arrays.fill(filler, 'x');
+        return (head + new String(filler) + tail).getBytes("UTF-8");
+    }
+
+    public long getPrerenderRequests() {
+        return prerenderRequests.get();
+    }
+
+    public long getAjaxSnapshotsRequests() {
+        return ajaxSnapshotsRequests.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.avaliani.snapshot.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Replays a list of requests against a server from a fixed number of concurrent clients
+ * and measures the latency of each request.
+ *
+ * @author avaliani
+ *
+ */
+public class TrafficGenerator {
+
+    private static final String[] CRAWLER_USER_AGENTS = {
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+        "Mozilla/5.0 (compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)",
+        "facebookexternalhit/1.1 (+http://www.facebook.com/externalhit_uatext.php)",
+        "Twitterbot/1.0",
+        "rogerbot/1.0 (http://www.moz.com/dp/rogerbot)",
+        "Mozilla/5.0 (compatible; Embedly/0.2; +http://support.embed.ly/)"
+    };
+
+    private static final String HUMAN_USER_AGENT =
+            "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/30.0 Safari/537.36";
+
+    /**
+     * Matches the request and user agent of an NCSA combined log format line.
+     */
+    private static final Pattern COMBINED_LOG_LINE =
+            Pattern.compile("^\\S+ \\S+ \\S+ \\[[^\\]]*\\] \"GET (\\S+)[^\"]*\" \\d+ \\S+ \"[^\"]*\" \"([^\"]*)\".*$");
+
+    private final String baseUrl;
+    private final List<TrafficRequest> requests;
+    private final int concurrency;
+
+    public TrafficGenerator(String baseUrl, List<TrafficRequest> requests, int concurrency) {
+        this.baseUrl = baseUrl;
+        this.requests = requests;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Creates a synthetic mix of human and crawler requests over a set of page paths.
+     *
+     * @param crawlerRatio the fraction of requests, between 0 and 1, made by crawlers.
+     */
+    public static List<TrafficRequest> syntheticRequests(int count, double crawlerRatio, int distinctPages,
+            long seed) {
+        Random random = new Random(seed);
+        List<TrafficRequest> requests = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            String path = "/page/" + random.nextInt(distinctPages);
+            if (random.nextDouble() < crawlerRatio) {
+                String userAgent = CRAWLER_USER_AGENTS[random.nextInt(CRAWLER_USER_AGENTS.length)];
+                requests.add(new TrafficRequest(path, userAgent, true));
+            } else {
+                requests.add(new TrafficRequest(path, HUMAN_USER_AGENT, false));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Reads the GET requests from an access log in the NCSA combined log format.
+     *
+     * @param crawlerUserAgents the user agent substrings that identify crawlers.
+     */
+    public static List<TrafficRequest> accessLogRequests(File accessLog, List<String> crawlerUserAgents)
+            throws IOException {
+        List<TrafficRequest> requests = Lists.newArrayList();
+        InputStream in = new FileInputStream(accessLog);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = COMBINED_LOG_LINE.matcher(line);
+                if (matcher.matches()) {
+                    String userAgent = matcher.group(2);
+                    requests.add(new TrafficRequest(matcher.group(1), userAgent,
+                            isCrawler(userAgent, crawlerUserAgents)));
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return requests;
+    }
+
+    private static boolean isCrawler(String userAgent, List<String> crawlerUserAgents) {
+        for (String crawlerUserAgent : crawlerUserAgents) {
+            if (userAgent.toLowerCase().indexOf(crawlerUserAgent.toLowerCase()) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends all requests and waits for them to complete.
+     *
+     * @param server the server under test, sampled for thread usage while the test runs.
+     */
+    public LoadTestReport run(final LoadTestServer server) throws InterruptedException {
+        final LoadTestReport report = new LoadTestReport(requests);
+        final AtomicInteger nextRequest = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+
+        Thread threadSampler = new Thread("load-test-thread-sampler") {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    report.sampleBusyThreads(server.getBusyThreads());
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        threadSampler.setDaemon(true);
+
+        report.start();
+        threadSampler.start();
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = nextRequest.getAndIncrement()) < requests.size()) {
+                        long start = System.nanoTime();
+                        int status = send(requests.get(index));
+                        report.record(index, System.nanoTime() - start, status);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        threadSampler.interrupt();
+        report.finish();
+        return report;
+    }
+
+    /**
+     * @return the response status code or -1 if the request failed.
+     */
+    private int send(TrafficRequest request) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + request.getPath()).openConnection();
+            connection.setRequestProperty("User-Agent", request.getUserAgent());
+            int status = connection.getResponseCode();
+            InputStream body = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try {
+                    IOUtils.copy(body, NullOutputStream.NULL_OUTPUT_STREAM);
+                } finally {
+                    IOUtils.closeQuietly(body);
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
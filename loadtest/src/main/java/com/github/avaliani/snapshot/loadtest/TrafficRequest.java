@@ -0,0 +1,32 @@
+package com.github.avaliani.snapshot.loadtest;
+
+/**
+ * A single request replayed by the {@link TrafficGenerator}.
+ *
+ * @author avaliani
+ *
+ */
+public class TrafficRequest {
+
+    private final String path;
+    private final String userAgent;
+    private final boolean crawler;
+
+    public TrafficRequest(String path, String userAgent, boolean crawler) {
+        this.path = path;
+        this.userAgent = userAgent;
+        this.crawler = crawler;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public boolean isCrawler() {
+        return crawler;
+    }
+}
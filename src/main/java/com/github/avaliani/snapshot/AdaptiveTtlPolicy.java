@@ -0,0 +1,133 @@
+package com.github.avaliani.snapshot;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+/**
+ * Chooses how long to cache each url's snapshot from the url's history.
+ *
+ * <p>Each time a url is snapshotted the content hash is compared with the previous
+ * snapshot's to estimate how often the page changes, and each crawler request for the
+ * url is used to estimate how often it is requested. Both estimates are exponentially
+ * weighted moving averages. A page that hasn't changed for longer than its average change
+ * interval is assumed to change at most that rarely, so the TTL of stable pages grows
+ * with every refresh that finds them unchanged.
+ *
+ * <p>The TTL is a fraction of the larger of the two intervals, clamped to the configured
+ * bounds. Snapshots of volatile pages that crawlers request often expire soon; expiring a
+ * page more often than it is requested gains nothing, so rarely requested pages are kept
+ * longer.
+ *
+ * <p>Nothing is refreshed proactively: an expired snapshot is replaced when a crawler next
+ * requests the url. A change is therefore only observed some time after it happened, up
+ * to the TTL plus the request interval later. The change is assumed to have happened
+ * halfway between the two snapshots, which removes the bias on average, but the estimate
+ * stays coarse for urls that are requested rarely.
+ *
+ * @author avaliani
+ *
+ */
+public class AdaptiveTtlPolicy {
+
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final long minTtlMillis;
+    private final long maxTtlMillis;
+    private final double ttlFraction;
+    private final ConcurrentMap<String, UrlHistory> histories;
+
+    /**
+     * @param minTtlMillis the shortest TTL, also used for urls without a history.
+     * @param maxTtlMillis the longest TTL.
+     * @param ttlFraction the fraction of the estimated interval used as the TTL.
+     * @param maxUrls the maximum number of url histories kept. The least recently used
+     *     histories are discarded first.
+     */
+    public AdaptiveTtlPolicy(long minTtlMillis, long maxTtlMillis, double ttlFraction, int maxUrls) {
+        this.minTtlMillis = minTtlMillis;
+        this.maxTtlMillis = Math.max(minTtlMillis, maxTtlMillis);
+        this.ttlFraction = ttlFraction;
+        histories = CacheBuilder.newBuilder().maximumSize(maxUrls).<String, UrlHistory>build().asMap();
+    }
+
+    /**
+     * Records a crawler request for the url.
+     */
+    public void recordRequest(String url) {
+        recordRequest(url, System.currentTimeMillis());
+    }
+
+    void recordRequest(String url, long now) {
+        getHistory(url).recordRequest(now);
+    }
+
+    /**
+     * Records a new snapshot of the url.
+     *
+     * @return how long to cache the snapshot for.
+     */
+    public long recordSnapshot(String url, HashCode contentHash) {
+        return recordSnapshot(url, contentHash, System.currentTimeMillis());
+    }
+
+    long recordSnapshot(String url, HashCode contentHash, long now) {
+        return getHistory(url).recordSnapshot(now, contentHash);
+    }
+
+    private UrlHistory getHistory(String url) {
+        UrlHistory history = histories.get(url);
+        if (history == null) {
+            UrlHistory newHistory = new UrlHistory();
+            history = histories.putIfAbsent(url, newHistory);
+            if (history == null) {
+                history = newHistory;
+            }
+        }
+        return history;
+    }
+
+    private static double updateAverage(double average, long sample) {
+        return (average == 0) ? sample : (EWMA_WEIGHT * sample) + ((1 - EWMA_WEIGHT) * average);
+    }
+
+    private class UrlHistory {
+        private HashCode contentHash;
+        private long lastSnapshotAt;
+        /** When the current content is estimated to have appeared. */
+        private long lastChangeAt;
+        /** Zero until a change has been observed. */
+        private double changeIntervalMillis;
+        private long lastRequestAt;
+        /** Zero until a second request has been observed. */
+        private double requestIntervalMillis;
+
+        synchronized void recordRequest(long now) {
+            if (lastRequestAt != 0) {
+                requestIntervalMillis = updateAverage(requestIntervalMillis, now - lastRequestAt);
+            }
+            lastRequestAt = now;
+        }
+
+        synchronized long recordSnapshot(long now, HashCode newContentHash) {
+            if (contentHash == null) {
+                contentHash = newContentHash;
+                lastSnapshotAt = now;
+                lastChangeAt = now;
+                return minTtlMillis;
+            }
+            if (!contentHash.equals(newContentHash)) {
+                // The page changed at some point since the previous snapshot.
+                long changedAt = lastSnapshotAt + ((now - lastSnapshotAt) / 2);
+                changeIntervalMillis = updateAverage(changeIntervalMillis, Math.max(1, changedAt - lastChangeAt));
+                contentHash = newContentHash;
+                lastChangeAt = changedAt;
+            }
+            lastSnapshotAt = now;
+            double estimatedChangeInterval = Math.max(changeIntervalMillis, now - lastChangeAt);
+            double ttl = Math.max(estimatedChangeInterval, requestIntervalMillis) * ttlFraction;
+            return Math.max(minTtlMillis, Math.min(maxTtlMillis, (long) ttl));
+        }
+    }
+}
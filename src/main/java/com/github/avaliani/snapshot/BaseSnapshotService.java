@@ -1,7 +1,9 @@
 package com.github.avaliani.snapshot;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
 import java.net.URL;
@@ -16,6 +18,11 @@ public abstract class BaseSnapshotService implements SnapshotService {
 
     private static final Logger log = Logger.getLogger(BaseSnapshotService.class.getName());
 
+    /**
+     * The maximum number of characters of an error response body to log.
+     */
+    private static final int MAX_DUMPED_CONTENT_LENGTH = 4096;
+
     protected SnapshotServiceConfig config;
 
     protected Level logLevel;
@@ -51,26 +58,40 @@ public abstract class BaseSnapshotService implements SnapshotService {
     @Override
     public final SnapshotResult snapshot(String urlToSnapshot, Map<String, List<String>> headers)
             throws IOException {
-        log.log(logLevel, "About to snapshot requested url: " + urlToSnapshot);
+        if (log.isLoggable(logLevel)) {
+            log.log(logLevel, "About to snapshot requested url: " + urlToSnapshot);
+        }
 
         final String apiUrl = getRequestUrl(urlToSnapshot);
 
+        SnapshotTrace trace = SnapshotTrace.forConfig(config);
         URL url = new URL(apiUrl);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("GET");
         copyRequestHeaders(connection, headers);
         copyRequestHeaders(connection, getRequestHeaders(urlToSnapshot));
         copyRequestHeaders(connection, config.getRequestHeaders());
+        // The snapshot request is a child span of the filter's span, not of the crawler's.
+        String traceparent = trace.newChildTraceparent();
+        if (traceparent != null) {
+            connection.setRequestProperty(SnapshotTrace.TRACEPARENT_HEADER, traceparent);
+        }
         // Explicitly set an ifinite timeout.
         connection.setReadTimeout(0);
 
         dumpRequest(connection);
 
         try {
-            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            long start = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            trace.addSpan("provider", start, trace.getChildSpanId());
+            if (responseCode == HttpURLConnection.HTTP_OK) {
                 dumpResponse(connection, "SUCCESS: snapshotting was successful", false);
 
-                return new SnapshotResult(getResponse(connection), getResponseHeaders(connection));
+                start = System.nanoTime();
+                byte[] response = getResponse(connection);
+                trace.addSpan("transfer", start, trace.getChildSpanId());
+                return SnapshotResult.wrap(response, getResponseHeaders(connection));
             } else {
                 dumpResponse(connection, "ERROR: snapshotting failed", true);
                 return null;
@@ -83,6 +104,9 @@ public abstract class BaseSnapshotService implements SnapshotService {
 
     private static void copyRequestHeaders(HttpURLConnection connection, Map<String, List<String>> headers) {
         for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (SnapshotTrace.TRACEPARENT_HEADER.equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
             for (String headerValue : header.getValue()) {
                 connection.addRequestProperty(header.getKey(), headerValue);
             }
@@ -97,12 +121,16 @@ public abstract class BaseSnapshotService implements SnapshotService {
     }
 
     /**
-     * Copy response from the proxy to the servlet client.
+     * Read the response from the proxy as is, so it is returned to the servlet client
+     * without being decoded and re-encoded.
      */
-    private static String getResponse(HttpURLConnection connection) throws IOException {
-        StringWriter respWriter = new StringWriter();
-        IOUtils.copy(connection.getInputStream(), respWriter);
-        return respWriter.toString();
+    private static byte[] getResponse(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
     }
 
 
@@ -130,11 +158,19 @@ public abstract class BaseSnapshotService implements SnapshotService {
                 output.append("    " + header.getKey() + " : " +
                         mergeHeaderValues(header.getValue()) + "\n");
             }
-            if (dumpContent) {
+            InputStream errorStream = connection.getErrorStream();
+            if (dumpContent && (errorStream != null)) {
+                // Only log the start of the body so a large error page can't stall the request.
                 output.append(">>>>> CONTENT START >>>>\n");
-                StringWriter respWriter = new StringWriter();
-                IOUtils.copy(connection.getInputStream(), respWriter);
-                output.append(respWriter.toString());
+                // ISO-8859-1 maps every byte to a character, so any body can be logged.
+                Reader respReader = new InputStreamReader(errorStream, "ISO-8859-1");
+                try {
+                    char[] content = new char[MAX_DUMPED_CONTENT_LENGTH];
+                    int contentLength = IOUtils.read(respReader, content);
+                    output.append(content, 0, contentLength);
+                } finally {
+                    IOUtils.closeQuietly(respReader);
+                }
                 output.append("\n>>>>> CONTENT END >>>>\n");
             }
             log.log(logLevel, output.toString());
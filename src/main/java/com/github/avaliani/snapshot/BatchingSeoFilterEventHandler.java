@@ -0,0 +1,25 @@
+package com.github.avaliani.snapshot;
+
+import java.util.List;
+
+/**
+ * An event handler that can receive successful snapshots in batches, off the request thread.
+ *
+ * <p>If the 'afterSnapshotQueueSize' filter parameter is set, the filter queues snapshots
+ * instead of invoking {@link #afterSnapshot} and background workers pass them to
+ * {@link #afterSnapshots} in groups, e.g. for bulk writes to a datastore. Otherwise
+ * {@link #afterSnapshot} is invoked on the request thread as usual.
+ *
+ * @author avaliani
+ *
+ */
+public interface BatchingSeoFilterEventHandler extends SeoFilterEventHandler {
+
+    /**
+     * Invoked from a background worker with one or more successful snapshots, in the order
+     * they were taken. Invoked concurrently if there are several workers.
+     *
+     * @param events the snapshots. Never empty.
+     */
+    void afterSnapshots(List<SnapshotEvent> events);
+}
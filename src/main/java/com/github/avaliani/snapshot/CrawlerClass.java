@@ -0,0 +1,72 @@
+package com.github.avaliani.snapshot;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * A named group of crawler user agents that share a snapshot admission priority and,
+ * optionally, a snapshot rate limit.
+ *
+ * @author avaliani
+ *
+ */
+public class CrawlerClass {
+
+    /**
+     * The name of the class that crawlers not listed in any other class belong to.
+     */
+    public static final String DEFAULT_CLASS_NAME = "default";
+
+    private final String name;
+    private final int priority;
+    private final List<String> userAgents;
+    @Nullable
+    private final RateLimiter rateLimiter;
+
+    /**
+     * @param name the name of the class.
+     * @param priority the admission priority. Lower values are admitted first.
+     * @param userAgents the lower case user agent substrings of crawlers in this class.
+     * @param snapshotsPerSecond the maximum snapshot rate for this class, or null for no limit.
+     */
+    public CrawlerClass(String name, int priority, List<String> userAgents,
+            @Nullable Double snapshotsPerSecond) {
+        this.name = name;
+        this.priority = priority;
+        this.userAgents = userAgents;
+        rateLimiter = (snapshotsPerSecond == null) ? null : RateLimiter.create(snapshotsPerSecond);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean matches(String lowerCaseUserAgent) {
+        for (String userAgent : userAgents) {
+            if (lowerCaseUserAgent.indexOf(userAgent) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a snapshot may be taken for this class without exceeding
+     *     its rate limit.
+     */
+    public boolean tryAcquireRate() {
+        return (rateLimiter == null) || rateLimiter.tryAcquire();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
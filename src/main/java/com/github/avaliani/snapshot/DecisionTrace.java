@@ -0,0 +1,182 @@
+package com.github.avaliani.snapshot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sampled log of the SEO filter's intercept decisions.
+ *
+ * <p>Sampled decisions are written, unformatted, to a lock-free ring buffer. A background
+ * thread, shared by all open traces, periodically drains the buffer and formats and logs
+ * the records, so request threads never build log messages. If the buffer overflows
+ * between flushes the oldest records are dropped.
+ *
+ * @author avaliani
+ *
+ */
+public class DecisionTrace {
+
+    private static final Object flusherLock = new Object();
+    private static ScheduledExecutorService flusher;
+    private static int openTraces;
+
+    private final Logger log;
+    private final Level logLevel;
+    private final long sampleInterval;
+    private final AtomicReferenceArray<Record> buffer;
+    private final int bufferMask;
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private long readSequence;
+    private final ScheduledFuture<?> flushTask;
+
+    /**
+     * @param sampleRate the fraction of decisions to record, between 0 and 1.
+     * @param bufferSize the minimum ring buffer size. Rounded up to a power of two.
+     * @param flushIntervalMillis how often the buffer is drained to the log.
+     */
+    public DecisionTrace(Logger log, Level logLevel, double sampleRate, int bufferSize,
+            long flushIntervalMillis) {
+        this.log = log;
+        this.logLevel = logLevel;
+        sampleInterval = (sampleRate > 0) ? Math.max(1, Math.round(1 / sampleRate)) : 0;
+        int capacity = Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+        buffer = new AtomicReferenceArray<Record>(capacity);
+        bufferMask = capacity - 1;
+
+        flushTask = openFlusher().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService openFlusher() {
+        synchronized (flusherLock) {
+            if (openTraces++ == 0) {
+                flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "seo-filter-decision-trace");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return flusher;
+        }
+    }
+
+    /**
+     * Stops the shared flusher thread once the last trace is closed, so it doesn't outlive
+     * the web application.
+     */
+    private static void closeFlusher() {
+        synchronized (flusherLock) {
+            if (--openTraces == 0) {
+                flusher.shutdown();
+                flusher = null;
+            }
+        }
+    }
+
+    /**
+     * @return true while any trace is open and the shared flusher thread is running.
+     */
+    static boolean isFlusherRunning() {
+        synchronized (flusherLock) {
+            return flusher != null;
+        }
+    }
+
+    /**
+     * @return true if the next decision should be recorded. Cheap enough to call on
+     *     every request.
+     */
+    public boolean isSampled() {
+        return (sampleInterval > 0) && log.isLoggable(logLevel) &&
+                ((sampleCounter.getAndIncrement() % sampleInterval) == 0);
+    }
+
+    public void record(String url, String queryString, int serverPort, int localPort,
+            String userAgent, String referer, InterceptDecision decision) {
+        long sequence = writeSequence.getAndIncrement();
+        buffer.set((int) (sequence & bufferMask), new Record(sequence, url, queryString, serverPort,
+                localPort, userAgent, referer, decision));
+    }
+
+    /**
+     * @return the number of sampled records dropped because the buffer overflowed.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    private synchronized void flush() {
+        long endSequence = writeSequence.get();
+        if (endSequence - readSequence > buffer.length()) {
+            droppedRecords.addAndGet(endSequence - readSequence - buffer.length());
+            readSequence = endSequence - buffer.length();
+        }
+        while (readSequence < endSequence) {
+            Record record = buffer.get((int) (readSequence & bufferMask));
+            if ((record == null) || (record.sequence < readSequence)) {
+                // The writer has claimed this slot but not yet filled it.
+                break;
+            }
+            if (record.sequence == readSequence) {
+                log.log(logLevel, record.format());
+            } else {
+                // Overwritten by a writer that lapped the reader.
+                droppedRecords.incrementAndGet();
+            }
+            readSequence++;
+        }
+    }
+
+    public void close() {
+        flushTask.cancel(false);
+        closeFlusher();
+        flush();
+    }
+
+    private static class Record {
+        final long sequence;
+        final String url;
+        final String queryString;
+        final int serverPort;
+        final int localPort;
+        final String userAgent;
+        final String referer;
+        final InterceptDecision decision;
+
+        Record(long sequence, String url, String queryString, int serverPort, int localPort,
+                String userAgent, String referer, InterceptDecision decision) {
+            this.sequence = sequence;
+            this.url = url;
+            this.queryString = queryString;
+            this.serverPort = serverPort;
+            this.localPort = localPort;
+            this.userAgent = userAgent;
+            this.referer = referer;
+            this.decision = decision;
+        }
+
+        String format() {
+            return "checking request " + url + ((queryString == null) ? "" : "?" + queryString) +
+                    " (serverPort: " + serverPort +
+                    ", localPort: " + localPort + ")" +
+                    " from User-Agent " + userAgent + " and referer " + referer + ": " +
+                    decision.getDescription() + "; intercept: " + (decision.isIntercept() ? "yes" : "no");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.avaliani.snapshot;
+
+import java.io.Closeable;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Optional extension of {@link SnapshotServiceConfig} implemented by the SEO filter's
+ * configuration. Snapshot services check for it with instanceof, so configurations
+ * written against {@link SnapshotServiceConfig} alone keep working.
+ *
+ * @author avaliani
+ *
+ */
+public interface ExtendedSnapshotServiceConfig extends SnapshotServiceConfig {
+
+    /**
+     * @return the trace of the request being snapshotted. Snapshot services should record
+     *     the stages of the snapshot on it and propagate its trace context to the
+     *     snapshotting service. Use {@link SnapshotTrace#forConfig} to also handle
+     *     configurations without a trace.
+     */
+    SnapshotTrace getTrace();
+
+    /**
+     * @return the value of a service specific configuration parameter or null
+     *     if the parameter is not set.
+     */
+    @Nullable
+    String getServiceParameter(String name);
+
+    /**
+     * Returns a resource shared by all snapshot services created from the same filter
+     * configuration, creating it on first use. Shared resources are closed when the
+     * configuration is closed, e.g. when the filter is destroyed.
+     *
+     * @param name the name of the resource. Should be qualified by the service class name.
+     * @param factory creates the resource if it does not exist yet.
+     */
+    <T extends Closeable> T getSharedResource(String name, Supplier<T> factory);
+}
@@ -0,0 +1,149 @@
+package com.github.avaliani.snapshot;
+
+import javax.annotation.Nullable;
+
+/**
+ * The SEO filter configuration and state for a group of hosts served by the same
+ * web application. Each profile has its own snapshot service configuration, request
+ * selection rules, event handler and snapshot concurrency budget, so one host's crawler
+ * traffic can't starve another host's snapshots.
+ *
+ * @author avaliani
+ *
+ */
+public class HostProfile {
+
+    /**
+     * The name of the profile used for hosts that are not listed in any profile.
+     */
+    public static final String DEFAULT_PROFILE_NAME = "default";
+
+    private final String name;
+    private final SeoFilterConfig config;
+    private final SnapshotService sharedSnapshotService;
+    private final SnapshotBulkhead snapshotBulkhead;
+    @Nullable
+    private final SeoFilterEventHandler eventHandler;
+    @Nullable
+    private final SnapshotEventDispatcher snapshotEventDispatcher;
+    @Nullable
+    private final SnapshotBundle snapshotBundle;
+    @Nullable
+    private final SlabSnapshotCache snapshotCache;
+    @Nullable
+    private final SnapshotPrefetcher snapshotPrefetcher;
+    @Nullable
+    private final SnapshotTracer snapshotTracer;
+    private final boolean serverTimingHeaderEnabled;
+
+    public HostProfile(String name, SeoFilterConfig config) {
+        this.name = name;
+        this.config = config;
+        sharedSnapshotService = config.getSnapshotService("http", SnapshotTrace.NONE);
+        snapshotBulkhead = config.getSnapshotBulkhead();
+        eventHandler = config.getEventHandler();
+        snapshotEventDispatcher = config.getSnapshotEventDispatcher(name, eventHandler);
+        snapshotBundle = config.getSnapshotBundle();
+        snapshotCache = config.getSnapshotCache();
+        snapshotTracer = config.getSnapshotTracer();
+        serverTimingHeaderEnabled = config.isServerTimingHeaderEnabled();
+        snapshotPrefetcher = config.getSnapshotPrefetcher(name, snapshotCache, snapshotEventDispatcher,
+                snapshotBulkhead, snapshotTracer);
+    }
+
+    /**
+     * @return the name of the profile. Also used as the namespace for any state
+     *     kept per profile.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public SeoFilterConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return a snapshot service that is not bound to any request, for checks that don't
+     *     take a snapshot, such as {@link SnapshotService#isSnapshotRequest}. Snapshots are
+     *     taken by a service created for the request.
+     */
+    public SnapshotService getSharedSnapshotService() {
+        return sharedSnapshotService;
+    }
+
+    public SnapshotBulkhead getSnapshotBulkhead() {
+        return snapshotBulkhead;
+    }
+
+    @Nullable
+    public SeoFilterEventHandler getEventHandler() {
+        return eventHandler;
+    }
+
+    /**
+     * @return the dispatcher that passes snapshots to the event handler in the background,
+     *     or null if the event handler is invoked on the request thread.
+     */
+    @Nullable
+    public SnapshotEventDispatcher getSnapshotEventDispatcher() {
+        return snapshotEventDispatcher;
+    }
+
+    /**
+     * @return the profile's pre-rendered snapshot bundle, or null if snapshots are only
+     *     taken live.
+     */
+    @Nullable
+    public SnapshotBundle getSnapshotBundle() {
+        return snapshotBundle;
+    }
+
+    /**
+     * @return the profile's snapshot cache, or null if caching is not enabled. Each profile
+     *     has its own cache and memory budget.
+     */
+    @Nullable
+    public SlabSnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * @return the profile's link prefetcher, or null if prefetching is not enabled.
+     */
+    @Nullable
+    public SnapshotPrefetcher getSnapshotPrefetcher() {
+        return snapshotPrefetcher;
+    }
+
+    /**
+     * @param traceparent the "traceparent" header of the crawler request, or null.
+     * @return a new trace reporting to the profile's tracer.
+     */
+    public SnapshotTrace newTrace(@Nullable String traceparent) {
+        return new SnapshotTrace(traceparent, snapshotTracer);
+    }
+
+    /**
+     * @return true if snapshot responses should include a "Server-Timing" header.
+     */
+    public boolean isServerTimingHeaderEnabled() {
+        return serverTimingHeaderEnabled;
+    }
+
+    public void destroy() {
+        if (snapshotPrefetcher != null) {
+            snapshotPrefetcher.shutdown();
+        }
+        if (snapshotEventDispatcher != null) {
+            snapshotEventDispatcher.shutdown();
+        }
+        if (eventHandler != null) {
+            eventHandler.destroy();
+        }
+        if (snapshotBundle != null) {
+            snapshotBundle.close();
+        }
+        config.close();
+    }
+}
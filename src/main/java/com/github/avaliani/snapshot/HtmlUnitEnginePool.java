@@ -0,0 +1,200 @@
+package com.github.avaliani.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.NicelyResynchronizingAjaxController;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.google.common.collect.Maps;
+
+/**
+ * A fixed size pool of pre-warmed HtmlUnit engines and the threads that render pages on
+ * them. Renders run on the pool's threads so the caller can give up on a render that does
+ * not finish in time. The engine of a render that was given up on is discarded and replaced,
+ * since its page may still be running scripts. HtmlUnit engines are not thread safe, so an
+ * engine whose render is still running is only closed by its render thread, once the render
+ * returns.
+ *
+ * @author avaliani
+ *
+ */
+class HtmlUnitEnginePool implements Closeable {
+
+    private static final Logger log = Logger.getLogger(HtmlUnitEnginePool.class.getName());
+
+    // States of a render, shared by its render thread and the thread that discards its engine.
+    private static final int RENDER_PENDING = 0;
+    private static final int RENDER_RUNNING = 1;
+    private static final int RENDER_FINISHED = 2;
+    private static final int RENDER_DISCARDED = 3;
+
+    private final int size;
+    private final long javaScriptTimeoutMillis;
+    private final Level logLevel;
+    private final BlockingQueue<WebClient> engines;
+    private final ExecutorService renderExecutor;
+    private final ConcurrentMap<WebClient, AtomicInteger> renderStates = Maps.newConcurrentMap();
+    private volatile boolean closed;
+
+    /**
+     * @param size the number of engines, which is also the maximum number of concurrent renders.
+     * @param javaScriptTimeoutMillis the maximum time a single script may run before it is
+     *     aborted.
+     */
+    HtmlUnitEnginePool(int size, long javaScriptTimeoutMillis, Level logLevel) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("'htmlUnitPoolSize' parameter must be positive: " + size);
+        }
+        this.size = size;
+        this.javaScriptTimeoutMillis = javaScriptTimeoutMillis;
+        this.logLevel = logLevel;
+        engines = new ArrayBlockingQueue<WebClient>(size);
+        renderExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "seo-filter-htmlunit-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            engines.add(createEngine());
+        }
+        log.log(logLevel, "Created HtmlUnit engine pool of size " + size);
+    }
+
+    private WebClient createEngine() {
+        WebClient engine = new WebClient(BrowserVersion.FIREFOX_17);
+        engine.getOptions().setCssEnabled(false);
+        engine.getOptions().setThrowExceptionOnScriptError(false);
+        engine.getOptions().setThrowExceptionOnFailingStatusCode(false);
+        engine.getOptions().setPrintContentOnFailingStatusCode(false);
+        engine.setJavaScriptTimeout(javaScriptTimeoutMillis);
+        engine.setAjaxController(new NicelyResynchronizingAjaxController());
+        engine.addRequestHeader(HtmlUnitSnapshotService.SNAPSHOT_REQUEST_HEADER, "htmlunit");
+        // Warm up the javascript engine so the first real render doesn't pay for it.
+        try {
+            engine.getPage("about:blank");
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to warm up HtmlUnit engine", e);
+        } finally {
+            engine.closeAllWindows();
+        }
+        return engine;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return a free engine, or null if none became free in time or the pool is closed.
+     *     The engine must be returned with {@link #release} or {@link #discard}.
+     */
+    @Nullable
+    public WebClient acquire(long timeoutMillis) throws InterruptedException {
+        return closed ? null : engines.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a render on one of the pool's threads. The engine must have been acquired from the
+     * pool and is not used for anything else until it is released or discarded.
+     */
+    public <T> Future<T> submit(final WebClient engine, final Callable<T> render) {
+        final AtomicInteger state = new AtomicInteger(RENDER_PENDING);
+        renderStates.put(engine, state);
+        return renderExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (!state.compareAndSet(RENDER_PENDING, RENDER_RUNNING)) {
+                    // Discarded before it started.
+                    return null;
+                }
+                try {
+                    return render.call();
+                } finally {
+                    if (!state.compareAndSet(RENDER_RUNNING, RENDER_FINISHED)) {
+                        // Discarded while running, so closing the engine was left to this thread.
+                        replace(engine);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns an engine whose render completed to the pool.
+     */
+    public void release(WebClient engine) {
+        renderStates.remove(engine);
+        engine.closeAllWindows();
+        engine.getCookieManager().clearCookies();
+        if (!closed) {
+            engines.offer(engine);
+        }
+    }
+
+    /**
+     * Closes an engine whose render was given up on and replaces it. If the render is still
+     * running the engine is closed by the render thread once the render returns, otherwise it
+     * is closed in the background.
+     */
+    public void discard(final WebClient engine) {
+        AtomicInteger state = renderStates.remove(engine);
+        if ((state != null) && (state.getAndSet(RENDER_DISCARDED) == RENDER_RUNNING)) {
+            return;
+        }
+        try {
+            renderExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replace(engine);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is closed.
+            engine.closeAllWindows();
+        }
+    }
+
+    private void replace(WebClient engine) {
+        // Closing the windows stops the page's background javascript.
+        engine.closeAllWindows();
+        if (!closed) {
+            engines.offer(createEngine());
+            log.log(logLevel, "Replaced a timed out HtmlUnit engine");
+        }
+    }
+
+    /**
+     * Closes the idle engines and stops the render threads. Engines in use are closed when
+     * they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        renderExecutor.shutdownNow();
+        WebClient engine;
+        while ((engine = engines.poll()) != null) {
+            engine.closeAllWindows();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.github.avaliani.snapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Web page snapshotting service that renders pages locally, inside the JVM, using the
+ * HtmlUnit headless browser (http://htmlunit.sourceforge.net/). No external snapshotting
+ * service or service token is required.
+ *
+ * <p>Creating a browser engine is expensive, so all services created from the same SEO
+ * filter configuration share a fixed size pool of pre-warmed engines, which is closed when
+ * the filter is destroyed. A service created with any other {@link SnapshotServiceConfig}
+ * has its own pool and must be closed by the caller. The pool size bounds the number of
+ * concurrent renders; a snapshot request that can not obtain an engine in time fails.
+ *
+ * <p>A render that does not finish shortly after the render timeout, e.g. because a script
+ * never returns, fails and its engine is replaced.
+ *
+ * @author avaliani
+ *
+ */
+public class HtmlUnitSnapshotService implements SnapshotService, Closeable {
+
+    private static final Logger log = Logger.getLogger(HtmlUnitSnapshotService.class.getName());
+
+    /**
+     * Header added to every request made by the rendering engine. Used to detect
+     * snapshot requests.
+     */
+    public static final String SNAPSHOT_REQUEST_HEADER = "X-Snapshot-Render";
+
+    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final long DEFAULT_POOL_WAIT_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_RENDER_TIMEOUT_MILLIS = 20000;
+    public static final long DEFAULT_NETWORK_IDLE_MILLIS = 500;
+
+    /**
+     * How long after the render timeout a render that has not returned is given up on.
+     */
+    private static final long RENDER_TIMEOUT_GRACE_MILLIS = 1000;
+
+    /**
+     * How often an idle page is checked for new background javascript.
+     */
+    private static final long NETWORK_IDLE_POLL_MILLIS = 20;
+
+    private static final String ESCAPED_FRAGMENT = "_escaped_fragment_";
+
+    private SnapshotServiceConfig config;
+    private Level logLevel;
+    private HtmlUnitEnginePool enginePool;
+    private boolean ownsEnginePool;
+
+    @Override
+    public void init(SnapshotServiceConfig config) {
+        this.config = config;
+        logLevel = config.getLoggingLevel();
+        final int poolSize = (int) getLongParameter("htmlUnitPoolSize", DEFAULT_POOL_SIZE);
+        final long renderTimeout = getLongParameter("htmlUnitRenderTimeoutMillis", DEFAULT_RENDER_TIMEOUT_MILLIS);
+        Supplier<HtmlUnitEnginePool> enginePoolFactory = new Supplier<HtmlUnitEnginePool>() {
+            @Override
+            public HtmlUnitEnginePool get() {
+                return new HtmlUnitEnginePool(poolSize, renderTimeout, logLevel);
+            }
+        };
+        if (config instanceof ExtendedSnapshotServiceConfig) {
+            enginePool = ((ExtendedSnapshotServiceConfig) config).getSharedResource(
+                    HtmlUnitEnginePool.class.getName(), enginePoolFactory);
+        } else {
+            enginePool = enginePoolFactory.get();
+            ownsEnginePool = true;
+        }
+    }
+
+    /**
+     * Closes the service's engine pool, unless it is shared with the other services of an
+     * SEO filter configuration.
+     */
+    @Override
+    public void close() {
+        if (ownsEnginePool) {
+            enginePool.close();
+        }
+    }
+
+    @Override
+    public SnapshotResult snapshot(final String urlToSnapshot, final Map<String, List<String>> headers)
+            throws IOException {
+        log.log(logLevel, "About to snapshot requested url: " + urlToSnapshot);
+
+        SnapshotTrace trace = SnapshotTrace.forConfig(config);
+        long start = System.nanoTime();
+        final WebClient engine;
+        try {
+            engine = enginePool.acquire(
+                getLongParameter("htmlUnitPoolWaitTimeoutMillis", DEFAULT_POOL_WAIT_TIMEOUT_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        trace.addSpan("engine", start);
+        if (engine == null) {
+            log.log(logLevel, "ERROR: no HtmlUnit engine available to snapshot request");
+            return null;
+        }
+
+        start = System.nanoTime();
+        final long renderTimeout = getLongParameter("htmlUnitRenderTimeoutMillis", DEFAULT_RENDER_TIMEOUT_MILLIS);
+        // The trace is not thread safe, so the render thread doesn't use it.
+        final String traceparent = trace.newChildTraceparent();
+        Future<SnapshotResult> render = enginePool.submit(engine, new Callable<SnapshotResult>() {
+            @Override
+            public SnapshotResult call() throws IOException {
+                return render(engine, urlToSnapshot, headers, traceparent, renderTimeout);
+            }
+        });
+        try {
+            SnapshotResult result = render.get(renderTimeout + RENDER_TIMEOUT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            enginePool.release(engine);
+            trace.addSpan("provider", start, trace.getChildSpanId());
+            return result;
+        } catch (TimeoutException e) {
+            render.cancel(true);
+            enginePool.discard(engine);
+            log.log(logLevel, "ERROR: render of " + urlToSnapshot + " did not finish in time");
+            return null;
+        } catch (InterruptedException e) {
+            render.cancel(true);
+            enginePool.discard(engine);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            enginePool.release(engine);
+            if (e.getCause() instanceof SocketTimeoutException) {
+                log.log(logLevel, "ERROR: snapshot request timed out");
+                return null;
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("HtmlUnit render failed", e.getCause());
+        }
+    }
+
+    private SnapshotResult render(WebClient engine, String urlToSnapshot,
+            Map<String, List<String>> headers, @Nullable String traceparent, long renderTimeout) throws IOException {
+        long deadline = System.currentTimeMillis() + renderTimeout;
+        engine.getOptions().setTimeout((int) renderTimeout);
+
+        WebRequest webRequest = new WebRequest(new URL(getRenderUrl(urlToSnapshot)));
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            // Keep the engine's user agent so the page renders as it would for a browser.
+            if (!header.getKey().equalsIgnoreCase("User-Agent") &&
+                    !header.getKey().equalsIgnoreCase(SnapshotTrace.TRACEPARENT_HEADER)) {
+                webRequest.setAdditionalHeader(header.getKey(), StringUtils.join(header.getValue(), ","));
+            }
+        }
+        if (traceparent != null) {
+            webRequest.setAdditionalHeader(SnapshotTrace.TRACEPARENT_HEADER, traceparent);
+        }
+
+        Page page = engine.getPage(webRequest);
+        int statusCode = page.getWebResponse().getStatusCode();
+        if (statusCode != 200) {
+            log.log(logLevel, "ERROR: snapshotting failed, RESPONSE " + statusCode);
+            return null;
+        }
+        if (!(page instanceof HtmlPage)) {
+            log.log(logLevel, "ERROR: snapshotting failed, response is not html: " +
+                    page.getWebResponse().getContentType());
+            return null;
+        }
+
+        waitForNetworkIdle(engine, deadline);
+
+        log.log(logLevel, "SUCCESS: snapshotting was successful");
+        Map<String, List<String>> responseHeaders = Maps.newHashMap();
+        responseHeaders.put("Content-Type", Lists.newArrayList("text/html; charset=UTF-8"));
+        return new SnapshotResult(stripXmlDeclaration(((HtmlPage) page).asXml()), responseHeaders);
+    }
+
+    /**
+     * Waits until no background javascript (timers, asynchronous XHRs) has been pending
+     * for a whole network idle window, or until the render deadline passes. A job started
+     * during the window, e.g. an XHR started when an earlier one finishes, restarts it. On
+     * timeout the page is snapshotted as rendered so far.
+     */
+    private void waitForNetworkIdle(WebClient engine, long deadline) {
+        long networkIdle = getLongParameter("htmlUnitNetworkIdleMillis", DEFAULT_NETWORK_IDLE_MILLIS);
+        long idleSince = -1;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                log.log(logLevel, "Render timed out before the network was idle; " +
+                        "snapshotting the page as rendered so far");
+                return;
+            }
+            if (engine.waitForBackgroundJavaScript(Math.min(networkIdle, remaining)) > 0) {
+                idleSince = -1;
+                continue;
+            }
+            now = System.currentTimeMillis();
+            if (idleSince < 0) {
+                idleSince = now;
+            }
+            long idleRemaining = networkIdle - (now - idleSince);
+            if (idleRemaining <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(Math.min(idleRemaining, NETWORK_IDLE_POLL_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The engine executes javascript, so it needs the "#!" url rather than the
+     * "_escaped_fragment_" url a crawler requests.
+     */
+    private static String getRenderUrl(String url) throws UnsupportedEncodingException {
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            return url;
+        }
+        List<String> params = Lists.newArrayList();
+        String fragment = null;
+        for (String param : url.substring(queryStart + 1).split("&")) {
+            if (param.equals(ESCAPED_FRAGMENT) || param.startsWith(ESCAPED_FRAGMENT + "=")) {
+                fragment = URLDecoder.decode(param.substring(ESCAPED_FRAGMENT.length()).replaceFirst("^=", ""),
+                        "UTF-8");
+            } else {
+                params.add(param);
+            }
+        }
+        if (fragment == null) {
+            return url;
+        }
+        String renderUrl = url.substring(0, queryStart);
+        if (!params.isEmpty()) {
+            renderUrl += "?" + StringUtils.join(params, "&");
+        }
+        return renderUrl + "#!" + fragment;
+    }
+
+    private static String stripXmlDeclaration(String xml) {
+        if (xml.startsWith("<?xml")) {
+            return xml.substring(xml.indexOf("?>") + 2).trim();
+        }
+        return xml;
+    }
+
+    private long getLongParameter(String name, long defaultValue) {
+        if (!(config instanceof ExtendedSnapshotServiceConfig)) {
+            return defaultValue;
+        }
+        String value = ((ExtendedSnapshotServiceConfig) config).getServiceParameter(name);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Unable to parse '" + name + "' parameter", e);
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public boolean isSnapshotRequest(HttpServletRequest request) {
+        return request.getHeader(SNAPSHOT_REQUEST_HEADER) != null;
+    }
+}
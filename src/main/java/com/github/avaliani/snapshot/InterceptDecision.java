@@ -0,0 +1,36 @@
+package com.github.avaliani.snapshot;
+
+/**
+ * The outcome of the SEO filter's check of whether a request should be snapshotted.
+ *
+ * @author avaliani
+ *
+ */
+public enum InterceptDecision {
+
+    SNAPSHOT_REQUEST("Request is a snapshot request", false),
+    NOT_HTTP_GET("Request is not HTTP GET", false),
+    STATIC_RESOURCE("Request is for a (static) resource", false),
+    NOT_WHITELISTED("Whitelist is enabled, but this request is not listed", false),
+    BLACKLISTED("Blacklist is enabled, and this request is listed", false),
+    ESCAPED_FRAGMENT("Request Has _escaped_fragment_", true),
+    BLANK_USER_AGENT("Request has blank userAgent", false),
+    NOT_CRAWLER("Request User-Agent is not a search bot", false),
+    CRAWLER("Defaulting to request intercept", true);
+
+    private final String description;
+    private final boolean intercept;
+
+    private InterceptDecision(String description, boolean intercept) {
+        this.description = description;
+        this.intercept = intercept;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isIntercept() {
+        return intercept;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.avaliani.snapshot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link SnapshotTracer} that logs every span at the FINE level.
+ *
+ * @author avaliani
+ *
+ */
+public class LoggingSnapshotTracer implements SnapshotTracer {
+
+    private static final Logger log = Logger.getLogger(LoggingSnapshotTracer.class.getName());
+
+    @Override
+    public void span(SnapshotTrace trace, String stage, long durationNanos, @Nullable String childSpanId) {
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "trace " + trace.getTraceId() + " span " + trace.getSpanId() + ": " + stage +
+                    " took " + TimeUnit.NANOSECONDS.toMicros(durationNanos) / 1000.0 + " ms" +
+                    ((childSpanId == null) ? "" : " (child span " + childSpanId + ")"));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.avaliani.snapshot;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * A {@link FilterConfig} whose init parameters are taken from a map, for configuring the
+ * SEO filter outside a servlet container, e.g. from the command line.
+ *
+ * @author avaliani
+ *
+ */
+public class MapFilterConfig implements FilterConfig {
+
+    private final String filterName;
+    private final Map<String, String> parameters;
+
+    public MapFilterConfig(String filterName, Map<String, String> parameters) {
+        this.filterName = filterName;
+        this.parameters = parameters;
+    }
+
+    @Override
+    public String getFilterName() {
+        return filterName;
+    }
+
+    /**
+     * @return null, since there is no servlet context.
+     */
+    @Override
+    public ServletContext getServletContext() {
+        return null;
+    }
+
+    @Override
+    public String getInitParameter(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public Enumeration<?> getInitParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+}
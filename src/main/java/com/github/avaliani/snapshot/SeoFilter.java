@@ -16,10 +16,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.logging.Level;
@@ -41,15 +44,31 @@ public class SeoFilter implements Filter {
 
     private static final Logger log = Logger.getLogger(SeoFilter.class.getName());
 
-    private SnapshotService snapshotService;
-    private SeoFilterEventHandler seoFilterEventHandler;
     private SeoFilterConfig seoFilterConfig;
+    private HostProfile defaultHostProfile;
+    private List<HostProfile> hostProfiles;
+    /** Lower case host name to profile. */
+    private Map<String, HostProfile> hostProfilesByHost;
+    private DecisionTrace decisionTrace;
     private Level logLevel;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         seoFilterConfig = new SeoFilterConfig(filterConfig);
         logLevel = seoFilterConfig.getLoggingLevel();
+        decisionTrace = seoFilterConfig.getDecisionTrace(log);
+
+        defaultHostProfile = new HostProfile(HostProfile.DEFAULT_PROFILE_NAME, seoFilterConfig);
+        hostProfiles = Lists.newArrayList(defaultHostProfile);
+        hostProfilesByHost = Maps.newHashMap();
+        for (Map.Entry<String, List<String>> profileHosts : seoFilterConfig.getHostProfiles().entrySet()) {
+            HostProfile hostProfile = new HostProfile(profileHosts.getKey(),
+                    seoFilterConfig.getHostProfileConfig(profileHosts.getKey()));
+            hostProfiles.add(hostProfile);
+            for (String host : profileHosts.getValue()) {
+                hostProfilesByHost.put(host, hostProfile);
+            }
+        }
     }
 
     @Override
@@ -58,12 +77,21 @@ public class SeoFilter implements Filter {
         try {
             final HttpServletRequest request = (HttpServletRequest) servletRequest;
             final HttpServletResponse response = (HttpServletResponse) servletResponse;
-            snapshotService =
-                    seoFilterConfig.getSnapshotService(request);
-            if (shouldShowPageSnapshot(request)) {
-                seoFilterEventHandler = seoFilterConfig.getEventHandler();
-                if (beforeSnapshot(request, response) || snapshot(request, response)) {
-                    return;
+            final HostProfile hostProfile = getHostProfile(request.getServerName());
+            if (shouldShowPageSnapshot(request, hostProfile.getConfig(), hostProfile.getSharedSnapshotService())) {
+                final SnapshotTrace trace = hostProfile.newTrace(request.getHeader(SnapshotTrace.TRACEPARENT_HEADER));
+                try {
+                    if (beforeSnapshot(request, response, hostProfile, trace)) {
+                        return;
+                    }
+                    final String url = getFullUrl(request, hostProfile.getConfig());
+                    if (bundledSnapshot(url, request, response, hostProfile, trace) ||
+                            cachedSnapshot(url, response, hostProfile, trace) ||
+                            admittedSnapshot(url, request, response, hostProfile, trace)) {
+                        return;
+                    }
+                } finally {
+                    trace.finish();
                 }
             }
         } catch (Exception e) {
@@ -72,10 +100,28 @@ public class SeoFilter implements Filter {
         filterChain.doFilter(servletRequest, servletResponse);
     }
 
-    private boolean beforeSnapshot(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        if (seoFilterEventHandler != null) {
-            SnapshotResult snapshotResult = seoFilterEventHandler.beforeSnapshot(request);
+    /**
+     * @return the profile serving a host, or the default profile if no profile lists the host.
+     */
+    HostProfile getHostProfile(String serverName) {
+        if (!hostProfilesByHost.isEmpty()) {
+            HostProfile hostProfile = hostProfilesByHost.get(serverName.toLowerCase());
+            if (hostProfile != null) {
+                return hostProfile;
+            }
+        }
+        return defaultHostProfile;
+    }
+
+    private boolean beforeSnapshot(HttpServletRequest request, HttpServletResponse response,
+            HostProfile hostProfile, SnapshotTrace trace) throws IOException {
+        SeoFilterEventHandler eventHandler = hostProfile.getEventHandler();
+        if (eventHandler != null) {
+            long start = System.nanoTime();
+            SnapshotResult snapshotResult = eventHandler.beforeSnapshot(request);
+            trace.addSpan("handler", start);
             if (snapshotResult != null) {
+                addServerTimingHeader(response, hostProfile, trace);
                 copyResponse(response, snapshotResult);
                 return true;
             }
@@ -83,23 +129,160 @@ public class SeoFilter implements Filter {
         return false;
     }
 
-    private boolean snapshot(HttpServletRequest request, HttpServletResponse response)
+    private boolean bundledSnapshot(String url, HttpServletRequest request, HttpServletResponse response,
+            HostProfile hostProfile, SnapshotTrace trace) throws IOException {
+        SnapshotBundle snapshotBundle = hostProfile.getSnapshotBundle();
+        if (snapshotBundle == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        SnapshotBundle.Page page = snapshotBundle.get(url);
+        if (page == null) {
+            return false;
+        }
+        FileInputStream in;
+        try {
+            in = page.open();
+        } catch (FileNotFoundException e) {
+            log.log(Level.WARNING, "Snapshot bundle file missing for " + url, e);
+            return false;
+        }
+        trace.addSpan("bundle", start);
+        start = System.nanoTime();
+        try {
+            addServerTimingHeader(response, hostProfile, trace);
+            copyResponseHeaders(response, page.getResponseHeaders());
+            response.addHeader("Vary", "Accept-Encoding");
+            OutputStream outputStream = response.getOutputStream();
+            if (acceptsGzip(request)) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.setContentLength((int) page.getCompressedLength());
+                page.writeCompressed(in, Channels.newChannel(outputStream));
+            } else {
+                page.writeUncompressed(in, outputStream);
+            }
+            outputStream.flush();
+        } finally {
+            closeQuietly(in);
+        }
+        trace.addSpan("response", start);
+        return true;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<?> acceptEncodings = request.getHeaders("Accept-Encoding");
+        while ((acceptEncodings != null) && acceptEncodings.hasMoreElements()) {
+            for (String encoding : ((String) acceptEncodings.nextElement()).split(",")) {
+                String[] encodingParams = encoding.trim().split(";");
+                if (encodingParams[0].trim().equalsIgnoreCase("gzip") &&
+                        !((encodingParams.length > 1) && encodingParams[1].trim().matches("q=0(\\.0*)?"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean cachedSnapshot(String url, HttpServletResponse response, HostProfile hostProfile,
+            SnapshotTrace trace) throws IOException {
+        SlabSnapshotCache snapshotCache = hostProfile.getSnapshotCache();
+        if (snapshotCache == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        SlabSnapshotCache.Entry entry = snapshotCache.get(url);
+        if (entry == null) {
+            return false;
+        }
+        trace.addSpan("cache", start);
+        start = System.nanoTime();
+        try {
+            addServerTimingHeader(response, hostProfile, trace);
+            copyResponseHeaders(response, entry.getResponseHeaders());
+            response.setContentLength(entry.getContentLength());
+            OutputStream outputStream = response.getOutputStream();
+            entry.writeBody(Channels.newChannel(outputStream));
+            outputStream.flush();
+        } finally {
+            entry.release();
+        }
+        trace.addSpan("response", start);
+        return true;
+    }
+
+    /**
+     * Takes a snapshot if the bulkhead admits the request in time. Requests that are not
+     * admitted fall through to the filter chain so crawler latency stays bounded.
+     */
+    private boolean admittedSnapshot(String url, HttpServletRequest request, HttpServletResponse response,
+            HostProfile hostProfile, SnapshotTrace trace)
             throws IOException, MalformedURLException, URISyntaxException {
+        SnapshotBulkhead snapshotBulkhead = hostProfile.getSnapshotBulkhead();
+        CrawlerClass crawlerClass = snapshotBulkhead.getCrawlerClass(request.getHeader("User-Agent"));
+        long start = System.nanoTime();
+        try {
+            boolean admitted = snapshotBulkhead.tryAcquire(crawlerClass);
+            trace.addSpan("admission", start);
+            if (!admitted) {
+                if (log.isLoggable(logLevel)) {
+                    log.log(logLevel, "Snapshot not admitted for crawler class " + crawlerClass + "; intercept: no");
+                }
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            SnapshotService snapshotService = hostProfile.getConfig().getSnapshotService(request.getScheme(), trace);
+            return snapshot(url, request, response, hostProfile, snapshotService, trace);
+        } finally {
+            snapshotBulkhead.release();
+        }
+    }
+
+    private boolean snapshot(String url, HttpServletRequest request, HttpServletResponse response,
+            HostProfile hostProfile, SnapshotService snapshotService, SnapshotTrace trace)
+            throws IOException, MalformedURLException, URISyntaxException {
+        Map<String, List<String>> requestHeaders = getRequestHeaders(request);
         SnapshotResult result = snapshotService.snapshot(
-                getFullUrl(request),
-                getRequestHeaders(request));
+                url,
+                requestHeaders);
         if (result != null) {
+            long start = System.nanoTime();
+            addServerTimingHeader(response, hostProfile, trace);
             copyResponse(response, result);
-            afterSnapshot(request, result);
+            trace.addSpan("response", start);
+            if (hostProfile.getSnapshotCache() != null) {
+                hostProfile.getSnapshotCache().put(url, result);
+            }
+            start = System.nanoTime();
+            afterSnapshot(url, request, requestHeaders, result, hostProfile);
+            trace.addSpan("afterSnapshot", start);
+            if (hostProfile.getSnapshotPrefetcher() != null) {
+                hostProfile.getSnapshotPrefetcher().prefetch(url, result, requestHeaders);
+            }
             return true;
         } else {
             return false;
         }
     }
 
-    private void afterSnapshot(HttpServletRequest request, SnapshotResult snapshotResult) {
-        if (seoFilterEventHandler != null) {
-            seoFilterEventHandler.afterSnapshot(request, snapshotResult);
+    private void afterSnapshot(String url, HttpServletRequest request, Map<String, List<String>> requestHeaders,
+            SnapshotResult snapshotResult, HostProfile hostProfile) {
+        SnapshotEventDispatcher snapshotEventDispatcher = hostProfile.getSnapshotEventDispatcher();
+        SeoFilterEventHandler eventHandler = hostProfile.getEventHandler();
+        if (snapshotEventDispatcher != null) {
+            snapshotEventDispatcher.dispatch(new SnapshotEvent(url, requestHeaders, snapshotResult));
+        } else if (eventHandler != null) {
+            eventHandler.afterSnapshot(request, snapshotResult);
+        }
+    }
+
+    static void addServerTimingHeader(HttpServletResponse response, HostProfile hostProfile,
+            SnapshotTrace trace) {
+        if (hostProfile.isServerTimingHeaderEnabled()) {
+            response.addHeader("Server-Timing", trace.getServerTiming());
         }
     }
 
@@ -116,7 +299,7 @@ public class SeoFilter implements Filter {
     /**
      * These are the "hop-by-hop" headers that should not be copied.
      * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html
-     * I use an HttpClient HeaderGroup class instead of Set<String> because this
+     * I use an HttpClient HeaderGroup class instead of {@code Set<String>} because this
      * approach does case insensitive lookup faster.
      */
     protected static final HeaderGroup hopByHopHeaders;
@@ -164,30 +347,32 @@ public class SeoFilter implements Filter {
     }
 
     protected void copyResponse(HttpServletResponse servletResponse, SnapshotResult result) throws IOException {
-        for (Map.Entry<String, List<String>> headerEntry : result.getResponseHeaders().entrySet()) {
-            if (!hopByHopHeaders.containsHeader(headerEntry.getKey())) {
-                for (String headerValue : headerEntry.getValue()) {
-                    servletResponse.addHeader(headerEntry.getKey(), headerValue);
-                }
-            }
-        }
+        copyResponseHeaders(servletResponse, result.getHeaders());
+        servletResponse.setContentLength(result.getContentLength());
 
-        PrintWriter printWriter = servletResponse.getWriter();
+        OutputStream outputStream = servletResponse.getOutputStream();
         try {
-            printWriter.write(result.getSnapshot());
-            printWriter.flush();
+            result.writeBody(outputStream);
+            outputStream.flush();
         } finally {
-            closeQuietly(printWriter);
+            closeQuietly(outputStream);
+        }
+    }
+
+    private static void copyResponseHeaders(HttpServletResponse servletResponse, SnapshotResult.Headers headers) {
+        // The headers were normalized when they were created.
+        for (int i = 0; i < headers.size(); i++) {
+            servletResponse.addHeader(headers.getName(i), headers.getValue(i));
         }
     }
 
-    private String getUrl(HttpServletRequest request) {
+    private String getUrl(HttpServletRequest request, SeoFilterConfig config) {
         // The local port option is to work around an issue in the App Engine dev server env
         // where the incoming serverPort and request url would not show the actual port being
         // listened on and would instead show the default port for the request url's scheme.
         // This fix does not work on production app engine since on production getLocalPort
         // returns zero. But luckily in production we use the default http / https ports.
-        if ( seoFilterConfig.forwardRequestsUsingLocalPort() &&
+        if ( config.forwardRequestsUsingLocalPort() &&
              (request.getLocalPort() != 0) ) {
             int localPort = request.getLocalPort();
             String scheme = request.getScheme();
@@ -202,8 +387,8 @@ public class SeoFilter implements Filter {
         }
     }
 
-    private String getFullUrl(HttpServletRequest request) {
-        final StringBuilder url = new StringBuilder(getUrl(request));
+    private String getFullUrl(HttpServletRequest request, SeoFilterConfig config) {
+        final StringBuilder url = new StringBuilder(getUrl(request, config));
         final String queryString = request.getQueryString();
         if (queryString != null) {
             url.append('?');
@@ -214,76 +399,81 @@ public class SeoFilter implements Filter {
 
     @Override
     public void destroy() {
-        snapshotService = null;
         seoFilterConfig = null;
+        if (decisionTrace != null) {
+            decisionTrace.close();
+            decisionTrace = null;
+        }
         logLevel = null;
-        if (seoFilterEventHandler != null) {
-            seoFilterEventHandler.destroy();
-            seoFilterEventHandler = null;
+        if (hostProfiles != null) {
+            for (HostProfile hostProfile : hostProfiles) {
+                hostProfile.destroy();
+            }
+            hostProfiles = null;
         }
+        hostProfilesByHost = null;
+        defaultHostProfile = null;
     }
 
-    private boolean shouldShowPageSnapshot(HttpServletRequest request) throws URISyntaxException {
+    private boolean shouldShowPageSnapshot(HttpServletRequest request, SeoFilterConfig config,
+            SnapshotService snapshotService) throws URISyntaxException {
         final String userAgent = request.getHeader("User-Agent");
-        final String url = getUrl(request);
+        final String url = getUrl(request, config);
         final String referer = request.getHeader("Referer");
 
-        log.log(logLevel, "checking request " + getFullUrl(request) +
-                " (serverPort: " + request.getServerPort() +
-                ", localPort: " + request.getLocalPort() +")" +
-                " from User-Agent " + userAgent + " and referer " + referer);
+        InterceptDecision decision = getInterceptDecision(request, config, snapshotService, url,
+                userAgent, referer);
+        if (decisionTrace.isSampled()) {
+            decisionTrace.record(url, request.getQueryString(), request.getServerPort(),
+                    request.getLocalPort(), userAgent, referer, decision);
+        }
+        return decision.isIntercept();
+    }
 
+    private InterceptDecision getInterceptDecision(HttpServletRequest request, SeoFilterConfig config,
+            SnapshotService snapshotService, String url, String userAgent, String referer) {
         if (snapshotService.isSnapshotRequest(request)) {
-            log.log(logLevel, "Request is a snapshot request; intercept: no");
-            return false;
+            return InterceptDecision.SNAPSHOT_REQUEST;
         }
 
         if (!HttpGet.METHOD_NAME.equals(request.getMethod())) {
-            log.log(logLevel, "Request is not HTTP GET; intercept: no");
-            return false;
+            return InterceptDecision.NOT_HTTP_GET;
         }
 
-        if (isInResources(url)) {
-            log.log(logLevel, "Request is for a (static) resource; intercept: no");
-            return false;
+        if (isInResources(url, config)) {
+            return InterceptDecision.STATIC_RESOURCE;
         }
 
-        final List<String> whiteList = seoFilterConfig.getWhitelist();
+        final List<String> whiteList = config.getWhitelist();
         if (whiteList != null && !isInWhiteList(url, whiteList)) {
-            log.log(logLevel, "Whitelist is enabled, but this request is not listed; intercept: no");
-            return false;
+            return InterceptDecision.NOT_WHITELISTED;
         }
 
-        final List<String> blacklist = seoFilterConfig.getBlacklist();
+        final List<String> blacklist = config.getBlacklist();
         if (blacklist != null && isInBlackList(url, referer, blacklist)) {
-            log.log(logLevel, "Blacklist is enabled, and this request is listed; intercept: no");
-            return false;
+            return InterceptDecision.BLACKLISTED;
         }
 
         if (hasEscapedFragment(request)) {
-            log.log(logLevel, "Request Has _escaped_fragment_; intercept: yes");
-            return true;
+            return InterceptDecision.ESCAPED_FRAGMENT;
         }
 
         if (StringUtils.isBlank(userAgent)) {
-            log.log(logLevel, "Request has blank userAgent; intercept: no");
-            return false;
+            return InterceptDecision.BLANK_USER_AGENT;
         }
 
-        if (!isInSearchUserAgent(userAgent)) {
-            log.log(logLevel, "Request User-Agent is not a search bot; intercept: no");
-            return false;
+        if (!isInSearchUserAgent(userAgent, config)) {
+            return InterceptDecision.NOT_CRAWLER;
         }
 
-        log.log(logLevel, String.format("Defaulting to request intercept(user-agent=%s): yes", userAgent));
-        return true;
+        return InterceptDecision.CRAWLER;
     }
 
     private boolean hasEscapedFragment(HttpServletRequest request) {
         return request.getParameterMap().containsKey("_escaped_fragment_");
     }
 
-    private boolean isInBlackList(final String url, final String referer, List<String> blacklist) {
+    static boolean isInBlackList(final String url, final String referer, List<String> blacklist) {
         return from(blacklist).anyMatch(new Predicate<String>() {
             @Override
             public boolean apply(String regex) {
@@ -294,7 +484,7 @@ public class SeoFilter implements Filter {
         });
     }
 
-    private boolean isInWhiteList(final String url, List<String> whitelist) {
+    static boolean isInWhiteList(final String url, List<String> whitelist) {
         return from(whitelist).anyMatch(new Predicate<String>() {
             @Override
             public boolean apply(String regex) {
@@ -303,8 +493,8 @@ public class SeoFilter implements Filter {
         });
     }
 
-    private boolean isInResources(final String url) {
-        return from(seoFilterConfig.getExtensionsToIgnore()).anyMatch(new Predicate<String>() {
+    static boolean isInResources(final String url, SeoFilterConfig config) {
+        return from(config.getExtensionsToIgnore()).anyMatch(new Predicate<String>() {
             @Override
             public boolean apply(String item) {
                 return url.contains(item.toLowerCase());
@@ -312,8 +502,8 @@ public class SeoFilter implements Filter {
         });
     }
 
-    private boolean isInSearchUserAgent(final String userAgent) {
-        return from(seoFilterConfig.getCrawlerUserAgents()).anyMatch(new Predicate<String>() {
+    private boolean isInSearchUserAgent(final String userAgent, SeoFilterConfig config) {
+        return from(config.getCrawlerUserAgents()).anyMatch(new Predicate<String>() {
             @Override
             public boolean apply(String item) {
                 return userAgent.toLowerCase().indexOf(item.toLowerCase()) >= 0;
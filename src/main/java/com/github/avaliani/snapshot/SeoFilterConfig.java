@@ -1,30 +1,81 @@
 package com.github.avaliani.snapshot;
 
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.commons.lang.StringUtils;
 
 import javax.annotation.Nullable;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
+import java.io.Closeable;
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.Map;
+import java.util.Set;
 
 public class SeoFilterConfig {
     private static final Level DEFAULT_LOGGING_LEVEL = Level.FINE;
+    private static final int DEFAULT_SNAPSHOT_QUEUE_SIZE = 20;
+    private static final long DEFAULT_SNAPSHOT_QUEUE_TIMEOUT_MILLIS = 1000;
+    private static final int DEFAULT_DECISION_TRACE_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_SNAPSHOT_CACHE_SLAB_SIZE = 1024 * 1024;
+    private static final long DEFAULT_SNAPSHOT_CACHE_TTL_SECONDS = 24 * 60 * 60;
+    private static final int DEFAULT_AFTER_SNAPSHOT_BATCH_SIZE = 50;
+    private static final long DEFAULT_AFTER_SNAPSHOT_METRICS_INTERVAL_SECONDS = 60;
+    private static final double DEFAULT_SNAPSHOT_CACHE_TTL_FRACTION = 0.5;
+    private static final int DEFAULT_SNAPSHOT_CACHE_TTL_HISTORY_SIZE = 100000;
+    private static final int DEFAULT_PREFETCH_QUEUE_SIZE = 100;
+    private static final long DEFAULT_SNAPSHOT_BUNDLE_RELOAD_SECONDS = 10;
+    private static final long DECISION_TRACE_FLUSH_INTERVAL_MILLIS = 1000;
 
     private FilterConfig filterConfig;
+    /** Resources shared by the snapshot services created from this configuration. */
+    private final Map<String, Closeable> sharedResources = Maps.newHashMap();
 
     public SeoFilterConfig(FilterConfig filterConfig) {
         this.filterConfig = filterConfig;
     }
 
+    /**
+     * Closes the resources shared by the snapshot services created from this configuration.
+     */
+    public void close() {
+        List<Closeable> resources;
+        synchronized (sharedResources) {
+            resources = Lists.newArrayList(sharedResources.values());
+            sharedResources.clear();
+        }
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                Logger.getLogger(SeoFilterConfig.class.getName()).log(Level.WARNING,
+                        "Unable to close snapshot service resource", e);
+            }
+        }
+    }
+
     public SnapshotService getSnapshotService(HttpServletRequest request) {
+        return getSnapshotService(request.getScheme(),
+                new SnapshotTrace(request.getHeader(SnapshotTrace.TRACEPARENT_HEADER), null));
+    }
+
+    /**
+     * @param requestScheme the scheme of the request being snapshotted.
+     * @param trace the trace of the request being snapshotted.
+     */
+    public SnapshotService getSnapshotService(String requestScheme, SnapshotTrace trace) {
         SnapshotService snapshotService;
         final String snapshotServiceClass =
                 filterConfig.getInitParameter("snapshotService");
@@ -40,7 +91,7 @@ public class SeoFilterConfig {
                 throw new RuntimeException("Unable to load SnapshotService class", e);
             }
         }
-        snapshotService.init(new SnapshotServiceConfigImpl(request));
+        snapshotService.init(new SnapshotServiceConfigImpl(requestScheme, trace));
         return snapshotService;
     }
 
@@ -57,6 +108,90 @@ public class SeoFilterConfig {
         return null;
     }
 
+    @Nullable
+    public SnapshotTracer getSnapshotTracer() {
+        final String snapshotTracer = filterConfig.getInitParameter("snapshotTracer");
+        if (StringUtils.isNotBlank(snapshotTracer)) {
+            try {
+                return (SnapshotTracer) Class.forName(snapshotTracer.trim()).newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to load SnapshotTracer class", e);
+            }
+        }
+        return null;
+    }
+
+    public boolean isServerTimingHeaderEnabled() {
+        return Boolean.parseBoolean(filterConfig.getInitParameter("serverTimingHeader"));
+    }
+
+    /**
+     * @return a dispatcher that passes snapshots to the event handler from background workers,
+     *     or null if afterSnapshot should be invoked on the request thread.
+     */
+    @Nullable
+    public SnapshotEventDispatcher getSnapshotEventDispatcher(String name,
+            @Nullable SeoFilterEventHandler eventHandler) {
+        int queueSize = (int) getLongParameter("afterSnapshotQueueSize", 0);
+        if ((queueSize <= 0) || (eventHandler == null)) {
+            return null;
+        }
+        if (!(eventHandler instanceof BatchingSeoFilterEventHandler)) {
+            Logger.getLogger(SeoFilterConfig.class.getName()).log(Level.WARNING,
+                    "'afterSnapshotQueueSize' parameter ignored: " + eventHandler.getClass().getName() +
+                    " does not implement " + BatchingSeoFilterEventHandler.class.getSimpleName());
+            return null;
+        }
+        SnapshotEventDispatcher.OverflowPolicy overflowPolicy = SnapshotEventDispatcher.OverflowPolicy.CALLER_RUNS;
+        String overflowPolicyStr = filterConfig.getInitParameter("afterSnapshotOverflowPolicy");
+        if (StringUtils.isNotBlank(overflowPolicyStr)) {
+            try {
+                overflowPolicy = SnapshotEventDispatcher.OverflowPolicy.valueOf(
+                        overflowPolicyStr.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Unable to parse 'afterSnapshotOverflowPolicy' parameter", e);
+            }
+        }
+        return new SnapshotEventDispatcher(name, (BatchingSeoFilterEventHandler) eventHandler, queueSize,
+                (int) getLongParameter("afterSnapshotWorkers", 1),
+                (int) getLongParameter("afterSnapshotBatchSize", DEFAULT_AFTER_SNAPSHOT_BATCH_SIZE),
+                overflowPolicy,
+                getLoggingLevel(),
+                getLongParameter("afterSnapshotMetricsIntervalSeconds",
+                        DEFAULT_AFTER_SNAPSHOT_METRICS_INTERVAL_SECONDS) * 1000);
+    }
+
+    /**
+     * @return the host profile names mapped to the lower case host names they serve.
+     */
+    public Map<String, List<String>> getHostProfiles() {
+        Map<String, List<String>> hostProfiles = Maps.newLinkedHashMap();
+        Map<String, String> profileHosts = parseNameValuePairs(filterConfig.getInitParameter("hostProfiles"));
+        for (Map.Entry<String, String> profileEntry : profileHosts.entrySet()) {
+            if (profileEntry.getKey().equals(HostProfile.DEFAULT_PROFILE_NAME)) {
+                throw new RuntimeException("'hostProfiles' parameter can not define a profile named '" +
+                        HostProfile.DEFAULT_PROFILE_NAME + "'");
+            }
+            List<String> hosts = Lists.newArrayList();
+            for (String host : profileEntry.getValue().split(",")) {
+                if (StringUtils.isNotBlank(host)) {
+                    hosts.add(host.trim().toLowerCase());
+                }
+            }
+            hostProfiles.put(profileEntry.getKey(), hosts);
+        }
+        return hostProfiles;
+    }
+
+    /**
+     * @return the configuration of a host profile. A parameter set for the profile,
+     *     "{profileName}.{parameterName}", overrides the parameter set for the filter.
+     */
+    public SeoFilterConfig getHostProfileConfig(String profileName) {
+        return new SeoFilterConfig(new HostProfileFilterConfig(filterConfig, profileName,
+                getHostProfiles().keySet()));
+    }
+
     public List<String> getCrawlerUserAgents() {
         List<String> crawlerUserAgents = Lists.newArrayList("googlebot", "yahoo", "bingbot", "baiduspider",
                 "facebookexternalhit", "twitterbot", "rogerbot", "linkedinbot", "embedly");
@@ -68,6 +203,133 @@ public class SeoFilterConfig {
         return crawlerUserAgents;
     }
 
+    /**
+     * @return the crawler classes in admission priority order. Crawlers not listed in a
+     *     class belong to the default class, which has the lowest priority unless it is
+     *     explicitly positioned in the 'crawlerClasses' parameter.
+     */
+    public List<CrawlerClass> getCrawlerClasses() {
+        Map<String, String> classUserAgents = parseNameValuePairs(filterConfig.getInitParameter("crawlerClasses"));
+        if (!classUserAgents.containsKey(CrawlerClass.DEFAULT_CLASS_NAME)) {
+            classUserAgents.put(CrawlerClass.DEFAULT_CLASS_NAME, "");
+        }
+        Map<String, String> classRateLimits = parseNameValuePairs(filterConfig.getInitParameter("crawlerClassRateLimits"));
+
+        List<CrawlerClass> crawlerClasses = Lists.newArrayList();
+        for (Map.Entry<String, String> classEntry : classUserAgents.entrySet()) {
+            List<String> userAgents = Lists.newArrayList();
+            for (String userAgent : classEntry.getValue().split(",")) {
+                if (StringUtils.isNotBlank(userAgent)) {
+                    userAgents.add(userAgent.trim().toLowerCase());
+                }
+            }
+            Double snapshotsPerSecond = null;
+            String rateLimit = classRateLimits.get(classEntry.getKey());
+            if (StringUtils.isNotBlank(rateLimit)) {
+                try {
+                    snapshotsPerSecond = Double.valueOf(rateLimit);
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("Unable to parse 'crawlerClassRateLimits' parameter", e);
+                }
+            }
+            crawlerClasses.add(new CrawlerClass(classEntry.getKey(), crawlerClasses.size(), userAgents,
+                    snapshotsPerSecond));
+        }
+        return crawlerClasses;
+    }
+
+    public SnapshotBulkhead getSnapshotBulkhead() {
+        return new SnapshotBulkhead(getCrawlerClasses(),
+                (int) getLongParameter("maxConcurrentSnapshots", 0),
+                (int) getLongParameter("snapshotQueueSize", DEFAULT_SNAPSHOT_QUEUE_SIZE),
+                getLongParameter("snapshotQueueTimeoutMillis", DEFAULT_SNAPSHOT_QUEUE_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * @return the snapshot cache, or null if snapshot caching is not enabled.
+     */
+    @Nullable
+    public SlabSnapshotCache getSnapshotCache() {
+        long maxBytes = getLongParameter("snapshotCacheMaxBytes", 0);
+        if (maxBytes <= 0) {
+            return null;
+        }
+        long ttlMillis = getLongParameter("snapshotCacheTtlSeconds", DEFAULT_SNAPSHOT_CACHE_TTL_SECONDS) * 1000;
+        return new SlabSnapshotCache(maxBytes,
+                (int) getLongParameter("snapshotCacheSlabSize", DEFAULT_SNAPSHOT_CACHE_SLAB_SIZE),
+                ttlMillis,
+                getAdaptiveTtlPolicy(ttlMillis),
+                getLoggingLevel());
+    }
+
+    /**
+     * @return the policy adapting the TTL of each cached snapshot, or null if all snapshots
+     *     are cached for maxTtlMillis.
+     */
+    @Nullable
+    private AdaptiveTtlPolicy getAdaptiveTtlPolicy(long maxTtlMillis) {
+        long minTtlSeconds = getLongParameter("snapshotCacheMinTtlSeconds", 0);
+        if (minTtlSeconds <= 0) {
+            return null;
+        }
+        double ttlFraction = DEFAULT_SNAPSHOT_CACHE_TTL_FRACTION;
+        String ttlFractionStr = filterConfig.getInitParameter("snapshotCacheTtlFraction");
+        if (StringUtils.isNotBlank(ttlFractionStr)) {
+            try {
+                ttlFraction = Double.parseDouble(ttlFractionStr.trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Unable to parse 'snapshotCacheTtlFraction' parameter", e);
+            }
+        }
+        return new AdaptiveTtlPolicy(minTtlSeconds * 1000, maxTtlMillis, ttlFraction,
+                (int) getLongParameter("snapshotCacheTtlHistorySize", DEFAULT_SNAPSHOT_CACHE_TTL_HISTORY_SIZE));
+    }
+
+    /**
+     * @return the pre-rendered snapshot bundle, or null if snapshots are only taken live.
+     */
+    @Nullable
+    public SnapshotBundle getSnapshotBundle() {
+        String bundleDir = filterConfig.getInitParameter("snapshotBundleDir");
+        if (StringUtils.isBlank(bundleDir)) {
+            return null;
+        }
+        return new SnapshotBundle(new File(bundleDir.trim()),
+                getLongParameter("snapshotBundleReloadSeconds", DEFAULT_SNAPSHOT_BUNDLE_RELOAD_SECONDS) * 1000);
+    }
+
+    /**
+     * @return the prefetcher of pages linked from snapshotted pages, or null if prefetching
+     *     is not enabled. Prefetching requires a snapshot cache to store the prefetched pages.
+     */
+    @Nullable
+    public SnapshotPrefetcher getSnapshotPrefetcher(String name, @Nullable SlabSnapshotCache snapshotCache,
+            @Nullable SnapshotEventDispatcher snapshotEventDispatcher, SnapshotBulkhead snapshotBulkhead,
+            @Nullable SnapshotTracer snapshotTracer) {
+        int linksPerPage = (int) getLongParameter("prefetchLinksPerPage", 0);
+        if (linksPerPage <= 0) {
+            return null;
+        }
+        if (snapshotCache == null) {
+            Logger.getLogger(SeoFilterConfig.class.getName()).log(Level.WARNING,
+                    "'prefetchLinksPerPage' parameter ignored: 'snapshotCacheMaxBytes' is not set");
+            return null;
+        }
+        double prefetchesPerSecond = 1;
+        String prefetchRate = filterConfig.getInitParameter("prefetchRatePerSecond");
+        if (StringUtils.isNotBlank(prefetchRate)) {
+            try {
+                prefetchesPerSecond = Double.parseDouble(prefetchRate.trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Unable to parse 'prefetchRatePerSecond' parameter", e);
+            }
+        }
+        return new SnapshotPrefetcher(name, this, snapshotCache, snapshotEventDispatcher, snapshotBulkhead,
+                snapshotTracer, linksPerPage, prefetchesPerSecond,
+                (int) getLongParameter("prefetchQueueSize", DEFAULT_PREFETCH_QUEUE_SIZE),
+                (int) getLongParameter("prefetchThreads", 1));
+    }
+
     public List<String> getExtensionsToIgnore() {
         List<String> extensionsToIgnore = Lists.newArrayList(".js", ".css", ".less", ".png", ".jpg", ".jpeg",
                 ".gif", ".pdf", ".doc", ".txt", ".zip", ".mp3", ".rar", ".exe", ".wmv", ".doc", ".avi", ".ppt", ".mpg",
@@ -109,6 +371,21 @@ public class SeoFilterConfig {
         return DEFAULT_LOGGING_LEVEL;
     }
 
+    public DecisionTrace getDecisionTrace(Logger log) {
+        double sampleRate = 1;
+        String sampleRateStr = filterConfig.getInitParameter("decisionTraceSampleRate");
+        if (StringUtils.isNotBlank(sampleRateStr)) {
+            try {
+                sampleRate = Double.parseDouble(sampleRateStr.trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Unable to parse 'decisionTraceSampleRate' parameter", e);
+            }
+        }
+        return new DecisionTrace(log, getLoggingLevel(), sampleRate,
+                (int) getLongParameter("decisionTraceBufferSize", DEFAULT_DECISION_TRACE_BUFFER_SIZE),
+                DECISION_TRACE_FLUSH_INTERVAL_MILLIS);
+    }
+
     public boolean forwardRequestsUsingLocalPort() {
         String val = filterConfig.getInitParameter("forwardRequestsUsingLocalPort");
         if ((val != null)) {
@@ -122,13 +399,102 @@ public class SeoFilterConfig {
         return false;
     }
 
-    private class SnapshotServiceConfigImpl implements SnapshotServiceConfig {
+    private long getLongParameter(String name, long defaultValue) {
+        String val = filterConfig.getInitParameter(name);
+        if (StringUtils.isNotBlank(val)) {
+            try {
+                return Long.parseLong(val.trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Unable to parse '" + name + "' parameter", e);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Parses semi-colon separated name=value pairs, preserving their order.
+     */
+    private static Map<String, String> parseNameValuePairs(@Nullable String nameValuePairsStr) {
+        Map<String, String> result = Maps.newLinkedHashMap();
+        if (nameValuePairsStr != null) {
+            String[] nameValuePairs = nameValuePairsStr.trim().split(";");
+            for (String nameValuePair : nameValuePairs) {
+                String[] parsedNameValuePair = nameValuePair.trim().split("=", 2);
+                String name = parsedNameValuePair[0].trim();
+                String value = ((parsedNameValuePair.length == 2) ?
+                        parsedNameValuePair[1].trim() : "");
+                if (StringUtils.isNotBlank(name)) {
+                    result.put(name, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The parameters of a host profile. The profile sees its own parameters under their
+     * unprefixed names, and none of the other profiles' parameters.
+     */
+    static class HostProfileFilterConfig implements FilterConfig {
+        private final FilterConfig filterConfig;
+        private final String parameterPrefix;
+        private final Set<String> profileNames;
+
+        public HostProfileFilterConfig(FilterConfig filterConfig, String profileName, Set<String> profileNames) {
+            this.filterConfig = filterConfig;
+            parameterPrefix = profileName + ".";
+            this.profileNames = profileNames;
+        }
+
+        @Override
+        public String getFilterName() {
+            return filterConfig.getFilterName();
+        }
+
+        @Override
+        public ServletContext getServletContext() {
+            return filterConfig.getServletContext();
+        }
+
+        @Override
+        public String getInitParameter(String name) {
+            if (isProfileParameter(name)) {
+                return null;
+            }
+            String profileValue = filterConfig.getInitParameter(parameterPrefix + name);
+            return (profileValue != null) ? profileValue : filterConfig.getInitParameter(name);
+        }
+
+        @Override
+        public Enumeration<?> getInitParameterNames() {
+            Set<String> names = Sets.newLinkedHashSet();
+            Enumeration<?> filterNames = filterConfig.getInitParameterNames();
+            while (filterNames.hasMoreElements()) {
+                String name = (String) filterNames.nextElement();
+                if (name.startsWith(parameterPrefix)) {
+                    names.add(name.substring(parameterPrefix.length()));
+                } else if (!isProfileParameter(name)) {
+                    names.add(name);
+                }
+            }
+            return Collections.enumeration(names);
+        }
+
+        private boolean isProfileParameter(String name) {
+            int prefixEnd = name.indexOf('.');
+            return (prefixEnd > 0) && profileNames.contains(name.substring(0, prefixEnd));
+        }
+    }
+
+    private class SnapshotServiceConfigImpl implements ExtendedSnapshotServiceConfig {
         private final String requestScheme;
+        private final SnapshotTrace trace;
         private SnapshotServiceTokenProvider serviceTokenProvider;
         private Map<String, List<String>> requestHeaders;
 
-        public SnapshotServiceConfigImpl(HttpServletRequest request) {
-            requestScheme = request.getScheme();
+        public SnapshotServiceConfigImpl(String requestScheme, SnapshotTrace trace) {
+            this.requestScheme = requestScheme;
+            this.trace = trace;
         }
 
         @Override
@@ -181,25 +547,41 @@ public class SeoFilterConfig {
         private void initRequestHeaders() {
             if (requestHeaders == null) {
                 requestHeaders = Maps.newHashMap();
-                String optionsStr = filterConfig.getInitParameter("snapshotServiceHeaders");
-                if (optionsStr != null) {
-                    String[] optionNameValuePairs = optionsStr.trim().split(";");
-                    for (String optionNameValuePair : optionNameValuePairs) {
-                        String[] parsedNameValuePair = optionNameValuePair.trim().split("=", 2);
-                        String optionName = parsedNameValuePair[0].trim();
-                        String optionValue = ((parsedNameValuePair.length == 2) ?
-                                parsedNameValuePair[1].trim() : "");
-                        if (StringUtils.isNotBlank(optionName)) {
-                            requestHeaders.put(optionName, Lists.newArrayList(optionValue));
-                        }
-                    }
+                Map<String, String> options =
+                        parseNameValuePairs(filterConfig.getInitParameter("snapshotServiceHeaders"));
+                for (Map.Entry<String, String> option : options.entrySet()) {
+                    requestHeaders.put(option.getKey(), Lists.newArrayList(option.getValue()));
                 }
             }
         }
 
+        @Override
+        public SnapshotTrace getTrace() {
+            return trace;
+        }
+
         @Override
         public Level getLoggingLevel() {
             return SeoFilterConfig.this.getLoggingLevel();
         }
+
+        @Override
+        @Nullable
+        public String getServiceParameter(String name) {
+            return filterConfig.getInitParameter(name);
+        }
+
+        @Override
+        public <T extends Closeable> T getSharedResource(String name, Supplier<T> factory) {
+            synchronized (sharedResources) {
+                @SuppressWarnings("unchecked")
+                T resource = (T) sharedResources.get(name);
+                if (resource == null) {
+                    resource = factory.get();
+                    sharedResources.put(name, resource);
+                }
+                return resource;
+            }
+        }
     }
 }
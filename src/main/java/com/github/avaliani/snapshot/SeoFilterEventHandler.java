@@ -7,6 +7,9 @@ import javax.servlet.http.HttpServletRequest;
  * An event handler to be invoked before and after the SEO filter encounters a URL that
  * requires snapshotting.
  *
+ * <p>The filter creates one handler per host profile when it is initialized and shares it
+ * between all requests to the profile's hosts, so implementations must be thread safe.
+ *
  * @author avaliani
  *
  */
@@ -29,5 +32,8 @@ public interface SeoFilterEventHandler {
      */
     void afterSnapshot(HttpServletRequest clientRequest, SnapshotResult result);
 
+    /**
+     * Invoked when the SEO filter is destroyed.
+     */
     void destroy();
 }
@@ -0,0 +1,261 @@
+package com.github.avaliani.snapshot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import javax.annotation.Nullable;
+
+/**
+ * Allocates fixed size chunks of off-heap memory. Memory is reserved in direct
+ * {@link ByteBuffer} slabs, up to a memory budget, and each slab is carved into chunks of
+ * a single power of two size class. Freed chunks are reused by later allocations of the
+ * same size class. A slab whose chunks are all free is returned to a spare pool, from which
+ * any size class may take it; slabs are never returned to the operating system.
+ *
+ * <p>Once the budget is used up, {@link #drainSlab} moves memory between size classes: it
+ * stops allocating from a slab of the size class holding the most slabs, so that the slab
+ * becomes spare once its chunks are freed.
+ *
+ * @author avaliani
+ *
+ */
+public class SlabAllocator {
+
+    private final long maxBytes;
+    private final int slabSize;
+    private final int minChunkSize;
+    /** Per size class, the slabs in use by the class. Includes slabs being drained. */
+    private final ArrayDeque<Slab>[] assignedSlabs;
+    /** Per size class, the slabs with free chunks that are not being drained. */
+    private final ArrayDeque<Slab>[] partialSlabs;
+    private final ArrayDeque<Slab> spareSlabs = new ArrayDeque<Slab>();
+    private long allocatedBytes;
+    private int drainingSlabs;
+    private long drainedSlabs;
+
+    /**
+     * @param maxBytes the maximum amount of off-heap memory to reserve.
+     * @param slabSize the size of each slab. Also the size of the largest chunk.
+     * @param minChunkSize the size of the smallest chunk.
+     */
+    public SlabAllocator(long maxBytes, int slabSize, int minChunkSize) {
+        this.maxBytes = maxBytes;
+        this.slabSize = slabSize;
+        this.minChunkSize = minChunkSize;
+        int sizeClasses = getSizeClass(slabSize) + 1;
+        assignedSlabs = newDequeArray(sizeClasses);
+        partialSlabs = newDequeArray(sizeClasses);
+        for (int i = 0; i < sizeClasses; i++) {
+            assignedSlabs[i] = new ArrayDeque<Slab>();
+            partialSlabs[i] = new ArrayDeque<Slab>();
+        }
+    }
+
+    /**
+     * Creates an array of deques, which java can't do directly for a generic type.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ArrayDeque<T>[] newDequeArray(int length) {
+        return (ArrayDeque<T>[]) new ArrayDeque<?>[length];
+    }
+
+    public int getMaxChunkSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return the number of size classes.
+     */
+    public int getSizeClassCount() {
+        return assignedSlabs.length;
+    }
+
+    /**
+     * @return the size class of chunks able to hold length bytes.
+     */
+    public int getSizeClass(int length) {
+        int sizeClass = 0;
+        for (int chunkSize = minChunkSize; chunkSize < length; chunkSize <<= 1) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @return a chunk able to hold length bytes, or null if there is no free chunk of the
+     *     required size class and no spare slab, and the memory budget has been used up.
+     */
+    @Nullable
+    public synchronized Chunk allocate(int length) {
+        if (length > slabSize) {
+            return null;
+        }
+        int sizeClass = getSizeClass(length);
+        ArrayDeque<Slab> partial = partialSlabs[sizeClass];
+        Slab slab = partial.peek();
+        if (slab == null) {
+            slab = spareSlabs.poll();
+            if (slab == null) {
+                if (allocatedBytes + slabSize > maxBytes) {
+                    return null;
+                }
+                slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+                allocatedBytes += slabSize;
+            }
+            slab.assign(sizeClass, minChunkSize << sizeClass);
+            assignedSlabs[sizeClass].add(slab);
+            partial.add(slab);
+        }
+        Chunk chunk = slab.freeChunks.pop();
+        if (slab.freeChunks.isEmpty()) {
+            partial.remove(slab);
+        }
+        return chunk;
+    }
+
+    public synchronized void free(Chunk chunk) {
+        Slab slab = chunk.slab;
+        slab.freeChunks.push(chunk);
+        if (slab.freeChunks.size() == slab.chunkCount) {
+            // Unused, so any size class may take it.
+            assignedSlabs[slab.sizeClass].remove(slab);
+            partialSlabs[slab.sizeClass].remove(slab);
+            if (slab.draining) {
+                slab.draining = false;
+                drainingSlabs--;
+                drainedSlabs++;
+            }
+            spareSlabs.add(slab);
+        } else if ((slab.freeChunks.size() == 1) && !slab.draining) {
+            partialSlabs[slab.sizeClass].add(slab);
+        }
+    }
+
+    /**
+     * Chooses a slab to move to a size class that has run out of memory, and stops
+     * allocating from it. The slab becomes spare once the caller frees its chunks. A slab is
+     * only moved from the size class holding the most slabs, and only if that class holds at
+     * least two more slabs than the size class that ran out, or that class has none. One slab
+     * is drained at a time.
+     *
+     * @return the slab being drained, or null if no slab should be moved.
+     */
+    @Nullable
+    public synchronized Slab drainSlab(int forSizeClass) {
+        if (drainingSlabs > 0) {
+            return null;
+        }
+        int victimClass = -1;
+        for (int sizeClass = 0; sizeClass < assignedSlabs.length; sizeClass++) {
+            if ((sizeClass != forSizeClass) && ((victimClass < 0) ||
+                    (assignedSlabs[sizeClass].size() > assignedSlabs[victimClass].size()))) {
+                victimClass = sizeClass;
+            }
+        }
+        int victimSlabs = (victimClass < 0) ? 0 : assignedSlabs[victimClass].size();
+        int forSlabs = assignedSlabs[forSizeClass].size();
+        if ((victimSlabs == 0) || ((forSlabs > 0) && (victimSlabs < forSlabs + 2))) {
+            return null;
+        }
+        // The slab with the most free chunks has the fewest chunks to evict.
+        Slab victim = null;
+        for (Slab slab : assignedSlabs[victimClass]) {
+            if ((victim == null) || (slab.freeChunks.size() > victim.freeChunks.size())) {
+                victim = slab;
+            }
+        }
+        victim.draining = true;
+        drainingSlabs++;
+        partialSlabs[victimClass].remove(victim);
+        return victim;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return the number of slabs assigned to a size class.
+     */
+    public synchronized int getSlabCount(int sizeClass) {
+        return assignedSlabs[sizeClass].size();
+    }
+
+    /**
+     * @return the number of slabs freed up by {@link #drainSlab} so far.
+     */
+    public synchronized long getDrainedSlabCount() {
+        return drainedSlabs;
+    }
+
+    /**
+     * A slab, assigned to one size class at a time.
+     */
+    public static class Slab {
+        private final ByteBuffer buffer;
+        private int sizeClass;
+        private int chunkCount;
+        private final ArrayDeque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+        private volatile boolean draining;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void assign(int sizeClass, int chunkSize) {
+            this.sizeClass = sizeClass;
+            chunkCount = buffer.capacity() / chunkSize;
+            freeChunks.clear();
+            for (int i = 0; i < chunkCount; i++) {
+                freeChunks.add(new Chunk(this, i * chunkSize));
+            }
+        }
+
+        /**
+         * @return the size class the slab was assigned to when it was drained.
+         */
+        public int getSizeClass() {
+            return sizeClass;
+        }
+
+        /**
+         * @return true if chunks are no longer allocated from the slab, so that it can be
+         *     reassigned once they are all freed.
+         */
+        public boolean isDraining() {
+            return draining;
+        }
+    }
+
+    /**
+     * A region of a slab.
+     */
+    public static class Chunk {
+        private final Slab slab;
+        private final int offset;
+
+        Chunk(Slab slab, int offset) {
+            this.slab = slab;
+            this.offset = offset;
+        }
+
+        public Slab getSlab() {
+            return slab;
+        }
+
+        public int getSizeClass() {
+            return slab.sizeClass;
+        }
+
+        /**
+         * @return a buffer over the first length bytes of the chunk, sharing the slab's
+         *     memory but with its own position and limit.
+         */
+        public ByteBuffer getBuffer(int length) {
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.limit(offset + length);
+            buffer.position(offset);
+            return buffer.slice();
+        }
+    }
+}
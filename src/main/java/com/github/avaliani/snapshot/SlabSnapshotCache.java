@@ -0,0 +1,415 @@
+package com.github.avaliani.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * A cache of snapshots whose bodies are stored off-heap, in {@link SlabAllocator} slabs,
+ * so that large numbers of cached pages don't add to garbage collection pauses. Only the
+ * index of urls, response headers and slab locations is kept on the heap.
+ *
+ * <p>Bodies are stored once per distinct content, keyed by their SHA-1 hash, and shared by
+ * every url that renders to the same bytes (soft 404 pages, paginated duplicates, parameter
+ * variants). A body is compared byte for byte before it is shared. Response headers are
+ * shared through {@link SnapshotResult.Headers} interning.
+ *
+ * <p>Lookups don't lock. Bodies are reference counted, by the urls that point to them and by
+ * readers, so a body's memory is only reused once every reader has released it, even if it
+ * is evicted while it is being served. When a size class runs out of memory, urls of that
+ * size class are evicted in CLOCK (second chance) order, preferring urls whose body no other
+ * url shares, since only those free memory. If another size class holds at
+ * least two more slabs, every url stored in one of its slabs is evicted instead, so the slab
+ * can be reassigned; otherwise a size class that claimed the memory budget early would keep
+ * it for good.
+ *
+ * @author avaliani
+ *
+ */
+public class SlabSnapshotCache {
+
+    private static final Logger log = Logger.getLogger(SlabSnapshotCache.class.getName());
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+    /**
+     * How many more entries eviction looks at for a body used by a single url, once it has
+     * found an evictable body shared by several urls.
+     */
+    private static final int MAX_SHARED_BODY_SKIPS = 32;
+
+    private final SlabAllocator allocator;
+    private final long ttlMillis;
+    @Nullable
+    private final AdaptiveTtlPolicy ttlPolicy;
+    private final Level logLevel;
+    private final ConcurrentMap<String, Entry> index = Maps.newConcurrentMap();
+    private final ConcurrentMap<HashCode, Body> bodies = Maps.newConcurrentMap();
+    /** Per size class eviction queues. Guarded by this. */
+    private final ArrayDeque<Entry>[] clockQueues;
+
+    /**
+     * @param maxBytes the maximum amount of off-heap memory used for snapshot bodies.
+     * @param slabSize the slab size. Snapshots larger than this are not cached.
+     * @param ttlMillis how long a cached snapshot is served for.
+     * @param ttlPolicy chooses the TTL of each snapshot, or null to use ttlMillis for all snapshots.
+     */
+    public SlabSnapshotCache(long maxBytes, int slabSize, long ttlMillis, @Nullable AdaptiveTtlPolicy ttlPolicy,
+            Level logLevel) {
+        allocator = new SlabAllocator(maxBytes, slabSize, MIN_CHUNK_SIZE);
+        this.ttlMillis = ttlMillis;
+        this.ttlPolicy = ttlPolicy;
+        this.logLevel = logLevel;
+        clockQueues = SlabAllocator.newDequeArray(allocator.getSizeClassCount());
+        for (int i = 0; i < clockQueues.length; i++) {
+            clockQueues[i] = new ArrayDeque<Entry>();
+        }
+    }
+
+    /**
+     * Looks up the snapshot of a url for a crawler request.
+     *
+     * @return the cached snapshot of the url, or null if there is no unexpired snapshot.
+     *     The caller must {@link Entry#release() release} the returned entry.
+     */
+    @Nullable
+    public Entry get(String url) {
+        if (ttlPolicy != null) {
+            ttlPolicy.recordRequest(url);
+        }
+        return lookup(url);
+    }
+
+    /**
+     * @return true if there is an unexpired snapshot of the url. Unlike {@link #get} this
+     *     is not counted as a request for the url.
+     */
+    public boolean contains(String url) {
+        Entry entry = index.get(url);
+        return (entry != null) && (System.currentTimeMillis() < entry.expiresAt);
+    }
+
+    @Nullable
+    private Entry lookup(String url) {
+        Entry entry = index.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            if (index.remove(url, entry)) {
+                unindexed(entry);
+            }
+            return null;
+        }
+        if (!entry.body.retain()) {
+            // Evicted since the lookup.
+            return null;
+        }
+        entry.referenced = true;
+        return entry;
+    }
+
+    /**
+     * Caches a snapshot of the url, replacing any previously cached snapshot.
+     *
+     * @return false if the snapshot could not be cached.
+     */
+    public boolean put(String url, SnapshotResult result) {
+        // The snapshot service's timings don't apply to cached responses. Dropping them also
+        // lets identical responses share their headers.
+        byte[] content = result.getBodyBytes();
+        // Hashed before taking the lock, so puts don't wait for each other's hashing.
+        return put(url, content, Hashing.sha1().hashBytes(content), result.getHeaders().without("Server-Timing"));
+    }
+
+    private synchronized boolean put(String url, byte[] content, HashCode hash, SnapshotResult.Headers headers) {
+        Body body = bodies.get(hash);
+        // A body in a slab being drained is not shared, so that the slab can be freed.
+        if ((body != null) && (body.chunk.getSlab().isDraining() || !body.retain())) {
+            body = null;
+        }
+        if ((body != null) && !body.contentEquals(content)) {
+            // A hash collision.
+            body.release();
+            body = null;
+        }
+        if (body == null) {
+            SlabAllocator.Chunk chunk = allocator.allocate(content.length);
+            if ((chunk == null) && (content.length <= allocator.getMaxChunkSize())) {
+                int sizeClass = allocator.getSizeClass(content.length);
+                SlabAllocator.Slab slab = allocator.drainSlab(sizeClass);
+                if (slab != null) {
+                    evict(slab);
+                    chunk = allocator.allocate(content.length);
+                }
+                ArrayDeque<Entry> clockQueue = clockQueues[sizeClass];
+                int freedBytes;
+                while ((chunk == null) && ((freedBytes = evict(clockQueue)) >= 0)) {
+                    if (freedBytes > 0) {
+                        chunk = allocator.allocate(content.length);
+                    }
+                }
+            }
+            if (chunk == null) {
+                if (log.isLoggable(logLevel)) {
+                    log.log(logLevel, "Unable to cache " + content.length + " byte snapshot of " + url);
+                }
+                return false;
+            }
+            chunk.getBuffer(content.length).put(content);
+            body = new Body(hash, chunk, content.length);
+            bodies.put(hash, body);
+        }
+
+        long entryTtlMillis = (ttlPolicy != null) ? ttlPolicy.recordSnapshot(url, hash) : ttlMillis;
+        if (log.isLoggable(logLevel) && (ttlPolicy != null)) {
+            log.log(logLevel, "Caching snapshot of " + url + " for " + (entryTtlMillis / 1000) + " seconds");
+        }
+        Entry entry = new Entry(url, body, headers, System.currentTimeMillis() + entryTtlMillis);
+        body.urlCount.incrementAndGet();
+        Entry replaced = index.put(url, entry);
+        if (replaced != null) {
+            unindexed(replaced);
+        }
+        ArrayDeque<Entry> clockQueue = clockQueues[body.chunk.getSizeClass()];
+        clockQueue.add(entry);
+        if (clockQueue.size() > 2 * index.size() + 16) {
+            compact(clockQueue);
+        }
+        return true;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        return index.get(entry.url) == entry;
+    }
+
+    /**
+     * Releases the body reference of an entry that has been removed from the index.
+     *
+     * @return true if the body's memory was freed.
+     */
+    private boolean unindexed(Entry entry) {
+        entry.body.urlCount.decrementAndGet();
+        return entry.body.release();
+    }
+
+    /**
+     * Drops replaced, expired and removed entries from an eviction queue.
+     */
+    private void compact(ArrayDeque<Entry> clockQueue) {
+        for (int i = clockQueue.size(); i > 0; i--) {
+            Entry entry = clockQueue.poll();
+            if (isCurrent(entry)) {
+                clockQueue.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached urls.
+     */
+    public int getUrlCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of distinct cached bodies.
+     */
+    public int getBodyCount() {
+        return bodies.size();
+    }
+
+    /**
+     * Evicts the next entry that hasn't been referenced since the clock hand last passed it.
+     * Evicting a url whose body is shared with other urls frees no memory, so entries whose
+     * body only they use are preferred.
+     *
+     * @return the number of bytes freed, which is 0 if the evicted body is still used by
+     *     other urls or readers, or -1 if the queue has no entries to evict.
+     */
+    private int evict(ArrayDeque<Entry> clockQueue) {
+        Entry victim = null;
+        Entry sharedVictim = null;
+        int sharedSkips = 0;
+        // A second pass finds the entries whose referenced flag the first pass cleared.
+        for (int pass = 0; (pass < 2) && (victim == null); pass++) {
+            for (int i = clockQueue.size(); (i > 0) && (victim == null); i--) {
+                Entry entry = clockQueue.poll();
+                if (!isCurrent(entry)) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else if (entry.body.urlCount.get() <= 1) {
+                    victim = entry;
+                    continue;
+                } else if (sharedVictim == null) {
+                    sharedVictim = entry;
+                }
+                clockQueue.add(entry);
+                if ((sharedVictim != null) && (++sharedSkips > MAX_SHARED_BODY_SKIPS)) {
+                    break;
+                }
+            }
+            if (sharedVictim != null) {
+                break;
+            }
+        }
+        if (victim == null) {
+            // Still queued, and dropped from the queue once it is no longer current.
+            victim = sharedVictim;
+        }
+        if (victim == null) {
+            return -1;
+        }
+        return (index.remove(victim.url, victim) && unindexed(victim)) ? victim.body.length : 0;
+    }
+
+    /**
+     * Evicts every url whose body is stored in a slab. The slab is freed once no reader
+     * holds any of its bodies.
+     */
+    private void evict(SlabAllocator.Slab slab) {
+        ArrayDeque<Entry> clockQueue = clockQueues[slab.getSizeClass()];
+        int evicted = 0;
+        for (int i = clockQueue.size(); i > 0; i--) {
+            Entry entry = clockQueue.poll();
+            if (!isCurrent(entry)) {
+                continue;
+            }
+            if (entry.body.chunk.getSlab() != slab) {
+                clockQueue.add(entry);
+            } else if (index.remove(entry.url, entry)) {
+                unindexed(entry);
+                evicted++;
+            }
+        }
+        if (log.isLoggable(logLevel)) {
+            log.log(logLevel, "Reassigning a slab of size class " + slab.getSizeClass() + ", evicted " +
+                    evicted + " urls");
+        }
+    }
+
+    /**
+     * @return the number of slabs that have been moved from one size class to another.
+     */
+    public long getReassignedSlabCount() {
+        return allocator.getDrainedSlabCount();
+    }
+
+    public void remove(String url) {
+        Entry entry = index.remove(url);
+        if (entry != null) {
+            unindexed(entry);
+        }
+    }
+
+    /**
+     * A cached snapshot of a url.
+     */
+    public class Entry {
+        private final String url;
+        private final Body body;
+        private final SnapshotResult.Headers responseHeaders;
+        private final long expiresAt;
+        private volatile boolean referenced;
+
+        /**
+         * @param body the body, already retained on behalf of this entry.
+         */
+        Entry(String url, Body body, SnapshotResult.Headers responseHeaders, long expiresAt) {
+            this.url = url;
+            this.body = body;
+            this.responseHeaders = responseHeaders;
+            this.expiresAt = expiresAt;
+        }
+
+        public SnapshotResult.Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public int getContentLength() {
+            return body.length;
+        }
+
+        /**
+         * Writes the body from off-heap memory. The body is never copied onto the heap as a
+         * whole, but a channel over a stream, such as one returned by
+         * {@link java.nio.channels.Channels#newChannel(java.io.OutputStream)}, still copies
+         * it through a small heap buffer.
+         */
+        public void writeBody(WritableByteChannel channel) throws IOException {
+            ByteBuffer buffer = body.chunk.getBuffer(body.length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Releases the reference to the entry's body returned by {@link SlabSnapshotCache#get}.
+         */
+        public void release() {
+            body.release();
+        }
+    }
+
+    /**
+     * A snapshot body shared by all the urls with the same content.
+     */
+    private class Body {
+        private final HashCode hash;
+        private final SlabAllocator.Chunk chunk;
+        private final int length;
+        /** One reference is held by each url entry pointing to the body, one by each reader. */
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        /** The number of url entries pointing to the body. */
+        private final AtomicInteger urlCount = new AtomicInteger();
+
+        Body(HashCode hash, SlabAllocator.Chunk chunk, int length) {
+            this.hash = hash;
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Must only be called while the body is retained.
+         */
+        boolean contentEquals(byte[] content) {
+            return (length == content.length) && chunk.getBuffer(length).equals(ByteBuffer.wrap(content));
+        }
+
+        /**
+         * @return true if this was the last reference and the body's memory was freed.
+         */
+        boolean release() {
+            if (refCount.decrementAndGet() == 0) {
+                bodies.remove(hash, this);
+                allocator.free(chunk);
+                return true;
+            }
+            return false;
+        }
+    }
+}
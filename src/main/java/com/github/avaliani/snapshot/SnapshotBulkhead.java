@@ -0,0 +1,194 @@
+package com.github.avaliani.snapshot;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Caps the number of concurrent snapshot calls. Requests that can not be admitted
+ * immediately wait in a bounded queue ordered by the priority of their {@link CrawlerClass}.
+ * When the queue is full a request may displace a queued request of lower priority.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotBulkhead {
+
+    private final List<CrawlerClass> crawlerClasses;
+    private final CrawlerClass defaultClass;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Waiter> waiters = new TreeSet<Waiter>(new Comparator<Waiter>() {
+        @Override
+        public int compare(Waiter w1, Waiter w2) {
+            if (w1.priority != w2.priority) {
+                return (w1.priority < w2.priority) ? -1 : 1;
+            }
+            return (w1.sequence < w2.sequence) ? -1 : ((w1.sequence == w2.sequence) ? 0 : 1);
+        }
+    });
+    private int available;
+    private long nextSequence;
+
+    /**
+     * @param crawlerClasses the crawler classes in priority order. Must include the
+     *     {@link CrawlerClass#DEFAULT_CLASS_NAME default} class.
+     * @param maxConcurrent the maximum number of concurrent snapshot calls, or zero
+     *     for no limit.
+     * @param maxQueued the maximum number of requests waiting to be admitted.
+     * @param queueTimeoutMillis the maximum time a request waits to be admitted.
+     */
+    public SnapshotBulkhead(List<CrawlerClass> crawlerClasses, int maxConcurrent, int maxQueued,
+            long queueTimeoutMillis) {
+        this.crawlerClasses = crawlerClasses;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        available = (maxConcurrent > 0) ? maxConcurrent : Integer.MAX_VALUE;
+        CrawlerClass defaultClass = null;
+        for (CrawlerClass crawlerClass : crawlerClasses) {
+            if (crawlerClass.getName().equals(CrawlerClass.DEFAULT_CLASS_NAME)) {
+                defaultClass = crawlerClass;
+            }
+        }
+        if (defaultClass == null) {
+            throw new IllegalArgumentException("Crawler classes must include the default class");
+        }
+        this.defaultClass = defaultClass;
+    }
+
+    /**
+     * @return the crawler class of the request's user agent.
+     */
+    public CrawlerClass getCrawlerClass(@Nullable String userAgent) {
+        if (userAgent != null) {
+            String lowerCaseUserAgent = userAgent.toLowerCase();
+            for (CrawlerClass crawlerClass : crawlerClasses) {
+                if (crawlerClass.matches(lowerCaseUserAgent)) {
+                    return crawlerClass;
+                }
+            }
+        }
+        return defaultClass;
+    }
+
+    /**
+     * Attempts to admit a snapshot call. If this returns true the caller must invoke
+     * {@link #release()} once the snapshot call completes.
+     *
+     * @return true if the snapshot call was admitted. false if the crawler class is over its
+     *     rate limit or the call could not be admitted in time.
+     */
+    public boolean tryAcquire(CrawlerClass crawlerClass) throws InterruptedException {
+        lock.lock();
+        try {
+            if ((available > 0) && waiters.isEmpty()) {
+                available--;
+                return acquireRateLocked(crawlerClass);
+            }
+            if (waiters.size() >= maxQueued) {
+                Waiter lowestPriority = waiters.isEmpty() ? null : waiters.last();
+                if ((lowestPriority == null) || (lowestPriority.priority <= crawlerClass.getPriority())) {
+                    return false;
+                }
+                waiters.remove(lowestPriority);
+                lowestPriority.state = Waiter.REJECTED;
+                lowestPriority.condition.signal();
+            }
+
+            Waiter waiter = new Waiter(crawlerClass.getPriority(), nextSequence++, lock.newCondition());
+            waiters.add(waiter);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+            try {
+                while (waiter.state == Waiter.WAITING) {
+                    if (nanos <= 0) {
+                        waiters.remove(waiter);
+                        return false;
+                    }
+                    nanos = waiter.condition.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                if (waiter.state == Waiter.ADMITTED) {
+                    releaseLocked();
+                } else {
+                    waiters.remove(waiter);
+                }
+                throw e;
+            }
+            return (waiter.state == Waiter.ADMITTED) && acquireRateLocked(crawlerClass);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a rate limit token for an admitted call, or hands the call on if the class is
+     * over its rate limit. Tokens are only taken once a call is admitted, so requests that
+     * are not admitted don't use up their class's rate.
+     */
+    private boolean acquireRateLocked(CrawlerClass crawlerClass) {
+        if (crawlerClass.tryAcquireRate()) {
+            return true;
+        }
+        releaseLocked();
+        return false;
+    }
+
+    /**
+     * Releases a snapshot call admitted by {@link #tryAcquire}, handing it to the highest
+     * priority waiting request if there is one.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            releaseLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked() {
+        Waiter next = waiters.pollFirst();
+        if (next != null) {
+            next.state = Waiter.ADMITTED;
+            next.condition.signal();
+        } else {
+            available++;
+        }
+    }
+
+    /**
+     * @return the number of requests waiting to be admitted.
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Waiter {
+        static final int WAITING = 0;
+        static final int ADMITTED = 1;
+        static final int REJECTED = 2;
+
+        final int priority;
+        final long sequence;
+        final Condition condition;
+        int state = WAITING;
+
+        Waiter(int priority, long sequence, Condition condition) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.avaliani.snapshot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Snapshots rendered ahead of time by {@link SnapshotBundleBuilder} and served from disk.
+ *
+ * <p>A bundle root directory holds any number of bundles and a "current" file naming the
+ * active one. Each bundle has an index and a gzip compressed file per distinct page. A new
+ * bundle is activated by replacing the "current" file, which a background thread checks
+ * every reload interval, so bundles can be swapped blue/green without restarting the web
+ * application. Requests keep being served from the previous bundle while a new index loads.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotBundle {
+
+    private static final Logger log = Logger.getLogger(SnapshotBundle.class.getName());
+
+    static final String CURRENT_FILE = "current";
+    static final String INDEX_FILE = "index";
+    static final String PAGES_DIR = "pages";
+    static final String INDEX_VERSION = "snapshot-bundle 1";
+    static final String INDEX_ENCODING = "UTF-8";
+
+    private final File rootDir;
+    private final ScheduledExecutorService reloader;
+    private volatile Map<String, Page> pages = Collections.emptyMap();
+    private volatile String bundleName;
+
+    /**
+     * Loads the current bundle and starts checking for a different one in the background.
+     * The bundle must be {@link #close() closed} to stop the background thread.
+     *
+     * @param rootDir the bundle root directory.
+     * @param reloadIntervalMillis how often to check which bundle is current.
+     */
+    public SnapshotBundle(final File rootDir, long reloadIntervalMillis) {
+        this.rootDir = rootDir;
+        reload();
+        reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "seo-filter-snapshot-bundle-" + rootDir.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Unable to reload the snapshot bundle of " + rootDir, e);
+                }
+            }
+        }, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the bundled snapshot of the url, or null if the current bundle doesn't
+     *     include the url.
+     */
+    @Nullable
+    public Page get(String url) {
+        return pages.get(getKey(url));
+    }
+
+    /**
+     * Stops checking for a different bundle.
+     */
+    public void close() {
+        reloader.shutdownNow();
+    }
+
+    /**
+     * @return the name of the bundle being served, or null if no bundle is current.
+     */
+    @Nullable
+    public String getBundleName() {
+        return bundleName;
+    }
+
+    /**
+     * Switches to the current bundle if it changed. Called periodically by the background thread.
+     */
+    synchronized void reload() {
+        String currentBundleName;
+        try {
+            currentBundleName = getCurrentBundleName(rootDir);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read the current snapshot bundle of " + rootDir, e);
+            return;
+        }
+        // A missing "current" file, e.g. while a non-atomic activation replaces it, keeps the
+        // loaded bundle.
+        if ((currentBundleName == null) || currentBundleName.equals(bundleName)) {
+            return;
+        }
+        try {
+            pages = loadIndex(new File(rootDir, currentBundleName));
+            bundleName = currentBundleName;
+            log.log(Level.INFO, "Serving " + pages.size() + " snapshots from bundle " + currentBundleName);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to load snapshot bundle " + currentBundleName, e);
+        }
+    }
+
+    /**
+     * @return the name of the current bundle, or null if there isn't one.
+     */
+    @Nullable
+    static String getCurrentBundleName(File rootDir) throws IOException {
+        File currentFile = new File(rootDir, CURRENT_FILE);
+        if (!currentFile.exists()) {
+            return null;
+        }
+        String name = FileUtils.readFileToString(currentFile, INDEX_ENCODING).trim();
+        return name.isEmpty() ? null : name;
+    }
+
+    private static Map<String, Page> loadIndex(File bundleDir) throws IOException {
+        Map<String, Page> pages = Maps.newHashMap();
+        File pagesDir = new File(bundleDir, PAGES_DIR);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(bundleDir, INDEX_FILE)), INDEX_ENCODING));
+        try {
+            String version = reader.readLine();
+            if (!INDEX_VERSION.equals(version)) {
+                throw new IOException("Unsupported snapshot bundle index version: " + version);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // key \t page file \t length [\t header name: value]*
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    continue;
+                }
+                Map<String, List<String>> headers = Maps.newLinkedHashMap();
+                for (int i = 3; i < fields.length; i++) {
+                    String[] nameValue = fields[i].split(":", 2);
+                    if (nameValue.length == 2) {
+                        List<String> values = headers.get(nameValue[0]);
+                        if (values == null) {
+                            values = Lists.newArrayList();
+                            headers.put(nameValue[0], values);
+                        }
+                        values.add(nameValue[1].trim());
+                    }
+                }
+                pages.put(fields[0], new Page(new File(pagesDir, fields[1]), Long.parseLong(fields[2]),
+                        SnapshotResult.Headers.of(headers)));
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return pages;
+    }
+
+    /**
+     * @return the bundle index key of a url. The scheme is dropped, so a bundle built from
+     *     http urls also serves https requests.
+     */
+    static String getKey(String url) {
+        int schemeEnd = url.indexOf("://");
+        return (schemeEnd == -1) ? url : url.substring(schemeEnd + 3);
+    }
+
+    /**
+     * A bundled snapshot.
+     */
+    public static class Page {
+        private final File file;
+        private final long compressedLength;
+        private final SnapshotResult.Headers responseHeaders;
+
+        Page(File file, long compressedLength, SnapshotResult.Headers responseHeaders) {
+            this.file = file;
+            this.compressedLength = compressedLength;
+            this.responseHeaders = responseHeaders;
+        }
+
+        public SnapshotResult.Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        /**
+         * @return the length of the gzip compressed snapshot.
+         */
+        public long getCompressedLength() {
+            return compressedLength;
+        }
+
+        /**
+         * Opens the snapshot file. Opening it before writing any part of the response lets a
+         * page removed from disk fall back to a live snapshot.
+         */
+        public FileInputStream open() throws FileNotFoundException {
+            return new FileInputStream(file);
+        }
+
+        /**
+         * Writes the gzip compressed snapshot with {@link FileChannel#transferTo}. Servlet 2.5
+         * exposes no socket channel, so for a channel wrapping the servlet output stream the
+         * JDK still copies the file through a small heap buffer; there is no zero-copy path.
+         */
+        public void writeCompressed(FileInputStream in, WritableByteChannel channel) throws IOException {
+            FileChannel fileChannel = in.getChannel();
+            long position = 0;
+            while (position < compressedLength) {
+                long transferred = fileChannel.transferTo(position, compressedLength - position, channel);
+                if (transferred <= 0) {
+                    throw new IOException("Snapshot bundle file truncated: " + file);
+                }
+                position += transferred;
+            }
+        }
+
+        /**
+         * Writes the snapshot uncompressed, for clients that don't accept gzip.
+         */
+        public void writeUncompressed(FileInputStream in, OutputStream out) throws IOException {
+            InputStream uncompressed = new GZIPInputStream(in);
+            IOUtils.copy(uncompressed, out);
+        }
+    }
+}
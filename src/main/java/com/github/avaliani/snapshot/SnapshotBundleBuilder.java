@@ -0,0 +1,263 @@
+package com.github.avaliani.snapshot;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Renders a list of urls ahead of time into a {@link SnapshotBundle}, using the snapshot
+ * service configured by the SEO filter parameters.
+ *
+ * <p>Run from the command line with options passed as "--name=value":
+ *
+ * <ul>
+ *   <li>bundleRoot - the bundle root directory. Required.</li>
+ *   <li>urls - a file listing the urls to snapshot, one per line. Required unless activating
+ *     an existing bundle.</li>
+ *   <li>threads - number of concurrent snapshots. Default 4.</li>
+ *   <li>activate - "false" to build the bundle without serving it, or the name of an existing
+ *     bundle to serve it without building a new one (e.g. to roll back). Default "true".</li>
+ *   <li>filter.{name} - SEO filter init parameter, e.g. "--filter.snapshotServiceToken=...".</li>
+ * </ul>
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotBundleBuilder {
+
+    private static final Logger log = Logger.getLogger(SnapshotBundleBuilder.class.getName());
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private final File rootDir;
+    private final SeoFilterConfig config;
+
+    public SnapshotBundleBuilder(File rootDir, SeoFilterConfig config) {
+        this.rootDir = rootDir;
+        this.config = config;
+    }
+
+    /**
+     * Snapshots the urls into a new bundle. Urls that fail to snapshot are left out of the
+     * bundle, so the filter takes live snapshots of them.
+     *
+     * @return the name of the new bundle.
+     */
+    public String build(List<String> urls, int threads) throws IOException, InterruptedException {
+        final String bundleName = "bundle-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        File bundleDir = new File(rootDir, bundleName);
+        final File pagesDir = new File(bundleDir, SnapshotBundle.PAGES_DIR);
+        FileUtils.forceMkdir(pagesDir);
+
+        final Map<String, String> indexLines = Collections.synchronizedMap(Maps.<String, String>newTreeMap());
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (final String url : urls) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String indexLine = snapshot(url, pagesDir);
+                        if (indexLine != null) {
+                            indexLines.put(url, indexLine);
+                        } else {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "Unable to snapshot " + url, e);
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        Writer index = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(bundleDir, SnapshotBundle.INDEX_FILE)), SnapshotBundle.INDEX_ENCODING));
+        try {
+            index.write(SnapshotBundle.INDEX_VERSION + "\n");
+            for (String indexLine : indexLines.values()) {
+                index.write(indexLine + "\n");
+            }
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+        log.log(Level.INFO, "Built snapshot bundle " + bundleName + " with " + indexLines.size() +
+                " snapshots, " + failures.get() + " failed");
+        return bundleName;
+    }
+
+    /**
+     * @return the index line of the url's snapshot, or null if the snapshot failed.
+     */
+    private String snapshot(String url, File pagesDir) throws IOException {
+        SnapshotService snapshotService = config.getSnapshotService(URI.create(url).getScheme(),
+                new SnapshotTrace(null, null));
+        SnapshotResult result = snapshotService.snapshot(url, Maps.<String, List<String>>newHashMap());
+        if (result == null) {
+            return null;
+        }
+
+        byte[] body = getUnencodedBody(url, result);
+        if (body == null) {
+            return null;
+        }
+
+        StringBuilder indexLine = new StringBuilder();
+        for (int i = 0; i < result.getHeaderCount(); i++) {
+            if (isBundledHeader(result.getHeaderName(i))) {
+                indexLine.append('\t').append(result.getHeaderName(i)).append(": ")
+                        .append(result.getHeaderValue(i).replaceAll("[\t\r\n]", " "));
+            }
+        }
+
+        // Pages are named by content hash, so identical pages are stored once.
+        String fileName = Hashing.sha1().hashBytes(body).toString() + ".gz";
+        File pageFile = new File(pagesDir, fileName);
+        synchronized (this) {
+            if (!pageFile.exists()) {
+                File tempFile = new File(pagesDir, fileName + ".tmp");
+                GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile));
+                try {
+                    out.write(body);
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+                if (!tempFile.renameTo(pageFile)) {
+                    throw new IOException("Unable to create " + pageFile);
+                }
+            }
+        }
+        return SnapshotBundle.getKey(url) + "\t" + fileName + "\t" + pageFile.length() + indexLine;
+    }
+
+    /**
+     * Pages are gzip compressed when they are bundled, so a body the snapshot service already
+     * encoded is decoded first rather than compressed twice.
+     *
+     * @return the body without any content encoding, or null if its encoding isn't supported.
+     */
+    @Nullable
+    private static byte[] getUnencodedBody(String url, SnapshotResult result) throws IOException {
+        String contentEncoding = "";
+        for (int i = 0; i < result.getHeaderCount(); i++) {
+            if (result.getHeaderName(i).equalsIgnoreCase("Content-Encoding")) {
+                contentEncoding = result.getHeaderValue(i).trim().toLowerCase();
+            }
+        }
+        if (contentEncoding.isEmpty() || contentEncoding.equals("identity")) {
+            return result.getBodyBytes();
+        }
+        if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip")) {
+            return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(result.getBodyBytes())));
+        }
+        log.log(Level.WARNING, "Unable to bundle " + url + ": unsupported Content-Encoding " + contentEncoding);
+        return null;
+    }
+
+    private static boolean isBundledHeader(String name) {
+        // The content encoding is set by the filter when the page is served.
+        return !name.equalsIgnoreCase("Content-Encoding") &&
+                !name.equalsIgnoreCase("Server-Timing");
+    }
+
+    /**
+     * Makes a bundle the current bundle. The "current" file is written to a temporary file
+     * and renamed over the old one, so the filter never sees a partially written bundle
+     * name. On platforms where renaming over an existing file fails, the old file is deleted
+     * first, so activation is not atomic: for a moment there is no "current" file, and the
+     * filter keeps serving the bundle it has loaded.
+     */
+    public void activate(String bundleName) throws IOException {
+        if (!new File(new File(rootDir, bundleName), SnapshotBundle.INDEX_FILE).exists()) {
+            throw new IOException("Snapshot bundle " + bundleName + " does not exist in " + rootDir);
+        }
+        File tempFile = new File(rootDir, SnapshotBundle.CURRENT_FILE + ".tmp");
+        FileUtils.writeStringToFile(tempFile, bundleName + "\n", SnapshotBundle.INDEX_ENCODING);
+        File currentFile = new File(rootDir, SnapshotBundle.CURRENT_FILE);
+        if (!tempFile.renameTo(currentFile)) {
+            // Renaming over an existing file fails on some platforms.
+            FileUtils.deleteQuietly(currentFile);
+            if (!tempFile.renameTo(currentFile)) {
+                throw new IOException("Unable to activate snapshot bundle " + bundleName);
+            }
+        }
+        log.log(Level.INFO, "Activated snapshot bundle " + bundleName);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Maps.newHashMap();
+        final Map<String, String> filterParameters = Maps.newHashMap();
+        for (String arg : args) {
+            String[] nameValue = arg.replaceFirst("^--", "").split("=", 2);
+            String value = (nameValue.length == 2) ? nameValue[1] : "true";
+            if (nameValue[0].startsWith("filter.")) {
+                filterParameters.put(nameValue[0].substring("filter.".length()), value);
+            } else {
+                options.put(nameValue[0], value);
+            }
+        }
+        String activate = StringUtils.defaultString(options.get("activate"), "true");
+        boolean build = activate.equals("true") || activate.equals("false");
+        if ((options.get("bundleRoot") == null) || (build && (options.get("urls") == null))) {
+            System.err.println("Usage: SnapshotBundleBuilder --bundleRoot=dir --urls=file " +
+                    "[--threads=n] [--activate=true|false|bundleName] [--filter.name=value ...]");
+            System.exit(1);
+        }
+
+        SeoFilterConfig config = new SeoFilterConfig(
+                new MapFilterConfig(SnapshotBundleBuilder.class.getSimpleName(), filterParameters));
+        SnapshotBundleBuilder builder = new SnapshotBundleBuilder(new File(options.get("bundleRoot")), config);
+        if (!build) {
+            builder.activate(activate);
+            return;
+        }
+
+        List<String> urls = Lists.newArrayList();
+        for (String line : FileUtils.readLines(new File(options.get("urls")), "UTF-8")) {
+            if (StringUtils.isNotBlank(line) && !line.trim().startsWith("#")) {
+                urls.add(line.trim());
+            }
+        }
+        String threads = options.get("threads");
+        String bundleName;
+        try {
+            bundleName = builder.build(urls, (threads == null) ? DEFAULT_THREADS : Integer.parseInt(threads));
+        } finally {
+            config.close();
+        }
+        if (activate.equals("true")) {
+            builder.activate(bundleName);
+        }
+        System.out.println(bundleName);
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.avaliani.snapshot;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A successful snapshot, detached from the client request that triggered it so that it
+ * can be handled after the request has completed.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotEvent {
+
+    private final String url;
+    private final Map<String, List<String>> requestHeaders;
+    private final SnapshotResult result;
+    private final long timestamp;
+
+    public SnapshotEvent(String url, Map<String, List<String>> requestHeaders, SnapshotResult result) {
+        this.url = url;
+        this.requestHeaders = requestHeaders;
+        this.result = result;
+        timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the full url of the snapshotted page, including the query string.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the client request headers forwarded to the snapshot service.
+     */
+    public Map<String, List<String>> getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    public SnapshotResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.avaliani.snapshot;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Dispatches successful snapshots to a {@link BatchingSeoFilterEventHandler} from background
+ * workers, so request threads don't wait for the handler.
+ *
+ * <p>Snapshots are queued on a bounded queue. Each worker takes the next snapshot, along
+ * with any others already queued up to the batch size, and passes them to the handler in
+ * a single call. What happens to snapshots that arrive when the queue is full is decided
+ * by the {@link OverflowPolicy}. Snapshots that arrive after {@link #shutdown} are dropped,
+ * since the handler may already have been destroyed.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotEventDispatcher {
+
+    private static final Logger log = Logger.getLogger(SnapshotEventDispatcher.class.getName());
+
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * What to do with a snapshot when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the new snapshot. */
+        DROP_NEWEST,
+        /** Drop the oldest queued snapshot to make room for the new one. */
+        DROP_OLDEST,
+        /** Pass the new snapshot to the handler on the request thread. */
+        CALLER_RUNS
+    }
+
+    private final BatchingSeoFilterEventHandler eventHandler;
+    private final BlockingQueue<SnapshotEvent> queue;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Level logLevel;
+    private final long metricsIntervalMillis;
+    private final List<Thread> workers = Lists.newArrayList();
+    private volatile boolean shutdown;
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong dispatchedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong callerRunsEvents = new AtomicLong();
+    private final AtomicLong shutdownDroppedEvents = new AtomicLong();
+    private final AtomicLong nextMetricsLog;
+
+    /**
+     * @param name a name for the worker threads.
+     * @param queueSize the maximum number of queued snapshots.
+     * @param workerCount the number of worker threads.
+     * @param batchSize the maximum number of snapshots passed to the handler at once.
+     * @param metricsIntervalMillis how often queue metrics are logged, or 0 to not log them.
+     */
+    public SnapshotEventDispatcher(String name, BatchingSeoFilterEventHandler eventHandler, int queueSize,
+            int workerCount, int batchSize, OverflowPolicy overflowPolicy, Level logLevel,
+            long metricsIntervalMillis) {
+        this.eventHandler = eventHandler;
+        queue = new ArrayBlockingQueue<SnapshotEvent>(queueSize);
+        this.batchSize = Math.max(1, batchSize);
+        this.overflowPolicy = overflowPolicy;
+        this.logLevel = logLevel;
+        this.metricsIntervalMillis = metricsIntervalMillis;
+        nextMetricsLog = new AtomicLong(System.currentTimeMillis() + metricsIntervalMillis);
+
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread("seo-filter-after-snapshot-" + name + "-" + i) {
+                @Override
+                public void run() {
+                    dispatchLoop();
+                }
+            };
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a snapshot for the handler, applying the overflow policy if the queue is full.
+     */
+    public void dispatch(SnapshotEvent event) {
+        if (shutdown) {
+            shutdownDroppedEvents.incrementAndGet();
+            return;
+        }
+        while (!queue.offer(event)) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                if (queue.poll() != null) {
+                    droppedEvents.incrementAndGet();
+                }
+            } else if (overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+                callerRunsEvents.incrementAndGet();
+                handle(Collections.singletonList(event));
+                return;
+            } else {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+        }
+        // The workers may have stopped since the check above.
+        if (shutdown && queue.remove(event)) {
+            shutdownDroppedEvents.incrementAndGet();
+            return;
+        }
+        int depth = queue.size();
+        int maxDepth;
+        while (depth > (maxDepth = maxQueueDepth.get())) {
+            if (maxQueueDepth.compareAndSet(maxDepth, depth)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of snapshots waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the largest number of snapshots that have been waiting at once.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return the number of snapshots passed to the handler by the workers.
+     */
+    public long getDispatchedEvents() {
+        return dispatchedEvents.get();
+    }
+
+    /**
+     * @return the number of snapshots dropped because the queue was full.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return the number of snapshots handled on the request thread because the queue was full.
+     */
+    public long getCallerRunsEvents() {
+        return callerRunsEvents.get();
+    }
+
+    /**
+     * @return the number of snapshots dropped because they arrived after shutdown, or were
+     *     still queued when the workers stopped.
+     */
+    public long getShutdownDroppedEvents() {
+        return shutdownDroppedEvents.get();
+    }
+
+    /**
+     * Stops accepting snapshots and waits, up to a single shared deadline, for the workers
+     * to drain the queue.
+     */
+    public void shutdown() {
+        shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    void shutdown(long timeoutMillis) {
+        shutdown = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread worker : workers) {
+            long remainingMillis = deadline - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+                break;
+            }
+            try {
+                worker.join(remainingMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // Workers still running past the deadline must not pass these to a destroyed handler.
+        int discarded = queue.drainTo(Lists.<SnapshotEvent>newArrayList());
+        if (discarded > 0) {
+            shutdownDroppedEvents.addAndGet(discarded);
+            log.log(Level.WARNING, "Discarding " + discarded + " snapshots not handled before shutdown");
+        }
+        logMetrics();
+    }
+
+    private void dispatchLoop() {
+        List<SnapshotEvent> batch = Lists.newArrayListWithCapacity(batchSize);
+        while (!shutdown || !queue.isEmpty()) {
+            SnapshotEvent event;
+            try {
+                event = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (event != null) {
+                batch.add(event);
+                queue.drainTo(batch, batchSize - 1);
+                dispatchedEvents.addAndGet(batch.size());
+                handle(batch);
+                batch.clear();
+            }
+            maybeLogMetrics();
+        }
+    }
+
+    private void handle(List<SnapshotEvent> events) {
+        try {
+            eventHandler.afterSnapshots(events);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "SeoFilterEventHandler failed to handle " + events.size() + " snapshots", e);
+        }
+    }
+
+    private void maybeLogMetrics() {
+        if (metricsIntervalMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextMetricsLog.get();
+        if ((now >= next) && nextMetricsLog.compareAndSet(next, now + metricsIntervalMillis)) {
+            logMetrics();
+        }
+    }
+
+    private void logMetrics() {
+        if (log.isLoggable(logLevel)) {
+            log.log(logLevel, "afterSnapshot queue depth: " + getQueueDepth() +
+                    ", max depth: " + getMaxQueueDepth() +
+                    ", dispatched: " + getDispatchedEvents() +
+                    ", dropped: " + getDroppedEvents() +
+                    ", caller runs: " + getCallerRunsEvents() +
+                    ", dropped after shutdown: " + getShutdownDroppedEvents());
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.avaliani.snapshot;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Speculatively snapshots the pages a crawler is likely to request next.
+ *
+ * <p>After a page is snapshotted, same origin links are extracted from the rendered HTML and
+ * filtered through the filter's extension, whitelist and blacklist rules. Up to a per page
+ * limit of links that are not already cached are snapshotted in the background, at a
+ * capped global rate, and the results are added to the snapshot cache. Prefetches are
+ * admitted by the host profile's {@link SnapshotBulkhead} at a priority below every crawler
+ * class, so they only use snapshot capacity crawlers aren't waiting for. Links are extracted
+ * on the prefetch threads, not on the request thread. Prefetches are requested with the
+ * page request's headers, minus its credentials.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotPrefetcher {
+
+    private static final Logger log = Logger.getLogger(SnapshotPrefetcher.class.getName());
+
+    private static final Pattern LINK_PATTERN =
+            Pattern.compile("<a\\s[^>]*?href\\s*=\\s*([\"'])(.*?)\\1", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final String ESCAPED_FRAGMENT_PARAM = "_escaped_fragment_";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Headers that are not forwarded to prefetches, which are not made on behalf of the crawler. */
+    private static final Set<String> credentialHeaders =
+            ImmutableSet.of("authorization", "cookie", "proxy-authorization");
+
+    private final SeoFilterConfig config;
+    private final SlabSnapshotCache snapshotCache;
+    @Nullable
+    private final SnapshotEventDispatcher snapshotEventDispatcher;
+    private final SnapshotBulkhead snapshotBulkhead;
+    @Nullable
+    private final SnapshotTracer snapshotTracer;
+    private final CrawlerClass prefetchClass;
+    private final int linksPerPage;
+    private final RateLimiter rateLimiter;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pendingUrls =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Level logLevel;
+
+    private final AtomicLong prefetchedSnapshots = new AtomicLong();
+    private final AtomicLong droppedPrefetches = new AtomicLong();
+
+    /**
+     * @param linksPerPage the maximum number of links prefetched per snapshotted page.
+     * @param prefetchesPerSecond the maximum prefetch rate.
+     * @param queueSize the maximum number of prefetches waiting to run. Links found when the
+     *     queue is full are not prefetched.
+     * @param threads the number of prefetch threads.
+     */
+    public SnapshotPrefetcher(final String name, SeoFilterConfig config, SlabSnapshotCache snapshotCache,
+            @Nullable SnapshotEventDispatcher snapshotEventDispatcher, SnapshotBulkhead snapshotBulkhead,
+            @Nullable SnapshotTracer snapshotTracer, int linksPerPage, double prefetchesPerSecond, int queueSize, int threads) {
+        this.config = config;
+        this.snapshotCache = snapshotCache;
+        this.snapshotEventDispatcher = snapshotEventDispatcher;
+        this.snapshotBulkhead = snapshotBulkhead;
+        this.snapshotTracer = snapshotTracer;
+        prefetchClass = new CrawlerClass("prefetch", Integer.MAX_VALUE, Collections.<String>emptyList(), null);
+        this.linksPerPage = linksPerPage;
+        rateLimiter = RateLimiter.create(prefetchesPerSecond);
+        logLevel = config.getLoggingLevel();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "seo-filter-prefetch-" + name + "-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues background snapshots of the pages linked from a snapshotted page.
+     *
+     * @param pageUrl the full url of the snapshotted page.
+     * @param result the snapshot of the page.
+     * @param requestHeaders the headers forwarded with the page's snapshot request.
+     */
+    public void prefetch(final String pageUrl, final SnapshotResult result,
+            final Map<String, List<String>> requestHeaders) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        queuePrefetches(pageUrl, result, requestHeaders);
+                    } catch (RuntimeException e) {
+                        log.log(Level.WARNING, "Unable to extract links to prefetch from " + pageUrl, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            droppedPrefetches.incrementAndGet();
+        }
+    }
+
+    private void queuePrefetches(String pageUrl, SnapshotResult result, Map<String, List<String>> requestHeaders) {
+        List<String> links = getPrefetchLinks(pageUrl, result.getSnapshot());
+        if (links.isEmpty()) {
+            return;
+        }
+        final Map<String, List<String>> prefetchHeaders = Maps.newHashMap();
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            if ((header.getKey() != null) && !credentialHeaders.contains(header.getKey().toLowerCase())) {
+                prefetchHeaders.put(header.getKey(), header.getValue());
+            }
+        }
+        prefetchHeaders.put("Referer", Lists.newArrayList(pageUrl));
+        for (final String url : links) {
+            if (!pendingUrls.add(url)) {
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            prefetch(url, prefetchHeaders);
+                        } finally {
+                            pendingUrls.remove(url);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingUrls.remove(url);
+                droppedPrefetches.incrementAndGet();
+            }
+        }
+    }
+
+    private void prefetch(String url, Map<String, List<String>> headers) {
+        if (snapshotCache.contains(url)) {
+            return;
+        }
+        rateLimiter.acquire();
+        try {
+            if (!snapshotBulkhead.tryAcquire(prefetchClass)) {
+                droppedPrefetches.incrementAndGet();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            SnapshotService snapshotService = config.getSnapshotService(URI.create(url).getScheme(),
+                    new SnapshotTrace(null, snapshotTracer));
+            SnapshotResult result = snapshotService.snapshot(url, headers);
+            if (result != null) {
+                prefetchedSnapshots.incrementAndGet();
+                snapshotCache.put(url, result);
+                if (snapshotEventDispatcher != null) {
+                    snapshotEventDispatcher.dispatch(new SnapshotEvent(url, headers, result));
+                }
+                if (log.isLoggable(logLevel)) {
+                    log.log(logLevel, "Prefetched snapshot of " + url);
+                }
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Unable to prefetch snapshot of " + url, e);
+        } finally {
+            snapshotBulkhead.release();
+        }
+    }
+
+    /**
+     * @return the same origin links of the page that the filter would snapshot for a crawler
+     *     and that are not already cached, up to the per page limit.
+     */
+    List<String> getPrefetchLinks(String pageUrl, String html) {
+        List<String> links = Lists.newArrayList();
+        URI pageUri;
+        try {
+            pageUri = new URI(pageUrl);
+        } catch (URISyntaxException e) {
+            return links;
+        }
+        Matcher matcher = LINK_PATTERN.matcher(html);
+        while (matcher.find() && (links.size() < linksPerPage)) {
+            String url = resolveLink(pageUri, matcher.group(2).trim().replace("&amp;", "&"));
+            if ((url != null) && !url.equals(pageUrl) && !links.contains(url) &&
+                    isSnapshotUrl(url, pageUrl) && !pendingUrls.contains(url) && !snapshotCache.contains(url)) {
+                links.add(url);
+            }
+        }
+        return links;
+    }
+
+    /**
+     * @return the url a crawler would request for the link, or null if the link is not a
+     *     same origin http link.
+     */
+    @Nullable
+    static String resolveLink(URI pageUri, String href) {
+        URI uri;
+        try {
+            uri = pageUri.resolve(href);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!pageUri.getScheme().equalsIgnoreCase(uri.getScheme()) ||
+                !pageUri.getHost().equalsIgnoreCase(uri.getHost()) ||
+                (getPort(pageUri) != getPort(uri))) {
+            return null;
+        }
+        String url = uri.getScheme() + "://" + uri.getRawAuthority() +
+                ((uri.getRawPath() == null || uri.getRawPath().isEmpty()) ? "/" : uri.getRawPath());
+        String query = uri.getRawQuery();
+        String fragment = uri.getRawFragment();
+        if ((fragment != null) && fragment.startsWith("!")) {
+            // Crawlers request "#!" urls with the fragment moved into the query string.
+            String escapedFragment = ESCAPED_FRAGMENT_PARAM + "=" + escapeFragment(fragment.substring(1));
+            query = (query == null) ? escapedFragment : query + "&" + escapedFragment;
+        }
+        return (query == null) ? url : url + "?" + query;
+    }
+
+    /**
+     * Escapes a "#!" fragment the way crawlers do when they move it into the query string:
+     * only control characters, spaces, non-ASCII characters and '#', '%', '&' and '+' are
+     * escaped. Escaping more, e.g. '/', would produce urls that differ from the ones crawlers
+     * request, so their snapshots would be cached under urls that are never looked up.
+     */
+    static String escapeFragment(String fragment) {
+        StringBuilder escaped = new StringBuilder(fragment.length());
+        for (byte b : fragment.getBytes(UTF_8)) {
+            int c = b & 0xff;
+            if ((c <= 0x20) || (c >= 0x7f) || (c == '#') || (c == '%') || (c == '&') || (c == '+')) {
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            } else {
+                escaped.append((char) c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static int getPort(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    private boolean isSnapshotUrl(String url, String pageUrl) {
+        int queryStart = url.indexOf('?');
+        String urlWithoutQuery = (queryStart == -1) ? url : url.substring(0, queryStart);
+        if (SeoFilter.isInResources(urlWithoutQuery, config)) {
+            return false;
+        }
+        List<String> whitelist = config.getWhitelist();
+        if ((whitelist != null) && !SeoFilter.isInWhiteList(urlWithoutQuery, whitelist)) {
+            return false;
+        }
+        List<String> blacklist = config.getBlacklist();
+        return (blacklist == null) || !SeoFilter.isInBlackList(urlWithoutQuery, pageUrl, blacklist);
+    }
+
+    /**
+     * @return the number of snapshots successfully prefetched.
+     */
+    public long getPrefetchedSnapshots() {
+        return prefetchedSnapshots.get();
+    }
+
+    /**
+     * @return the number of prefetches skipped because the queue was full or the snapshot
+     *     capacity was needed by crawlers.
+     */
+    public long getDroppedPrefetches() {
+        return droppedPrefetches.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
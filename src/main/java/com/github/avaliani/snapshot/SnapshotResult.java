@@ -1,12 +1,375 @@
 package com.github.avaliani.snapshot;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import lombok.Data;
+import javax.annotation.Nullable;
 
-@Data
-public class SnapshotResult {
-    private final String snapshot;
-    private final Map<String, List<String>> responseHeaders;
-}
\ No newline at end of file
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable snapshot: the encoded page body and the response headers to return with it.
+ *
+ * <p>Response headers are normalized once, when the result is created: the status line,
+ * hop-by-hop headers and headers the servlet container sets itself (Content-Length, Date)
+ * are dropped. The remaining headers are kept as a flat array of names and values that is
+ * shared by all results with the same headers.
+ *
+ * <p>{@link #writeTo} and {@link #readFrom} serialize a result in a compact binary format,
+ * so results can be stored or sent elsewhere without decoding and re-encoding the body.
+ * Deserialized results are validated and normalized like any other, so a peer can't make
+ * the filter allocate unbounded memory or send headers it would otherwise drop.
+ *
+ * @author avaliani
+ *
+ */
+public final class SnapshotResult {
+
+    private static final byte SERIALIZATION_VERSION = 1;
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+    private static final Charset DEFAULT_CHARSET = Charset.forName(DEFAULT_CHARACTER_ENCODING);
+
+    /**
+     * The maximum number of headers {@link #readFrom} accepts.
+     */
+    public static final int MAX_HEADER_COUNT = 1024;
+
+    /**
+     * The maximum body length {@link #readFrom(DataInput)} accepts.
+     */
+    public static final int DEFAULT_MAX_BODY_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Bodies are read in growing chunks starting at this size, so a truncated stream fails
+     * before a buffer of the declared length is allocated.
+     */
+    private static final int BODY_READ_CHUNK_SIZE = 64 * 1024;
+
+    private static final Interner<Headers> headersInterner = Interners.newWeakInterner();
+
+    private final Headers headers;
+    private final byte[] body;
+
+    /**
+     * @param snapshot the page. Encoded with the charset of the Content-Type header, or
+     *     ISO-8859-1 if there is none or it is not supported.
+     * @param responseHeaders the response headers.
+     */
+    public SnapshotResult(String snapshot, Map<String, List<String>> responseHeaders) {
+        headers = Headers.of(responseHeaders);
+        body = snapshot.getBytes(headers.charset);
+    }
+
+    /**
+     * @param body the encoded page. Copied.
+     * @param responseHeaders the response headers.
+     */
+    public SnapshotResult(byte[] body, Map<String, List<String>> responseHeaders) {
+        this(Headers.of(responseHeaders), body.clone());
+    }
+
+    private SnapshotResult(Headers headers, byte[] body) {
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Creates a result that takes ownership of the body array, which must not be modified
+     * afterwards.
+     */
+    static SnapshotResult wrap(byte[] body, Map<String, List<String>> responseHeaders) {
+        return new SnapshotResult(Headers.of(responseHeaders), body);
+    }
+
+    /**
+     * @return the page, decoded with the result's character encoding.
+     */
+    public String getSnapshot() {
+        return new String(body, headers.charset);
+    }
+
+    /**
+     * @return a read only view of the encoded page.
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the encoded page, not copied. Must not be modified.
+     */
+    byte[] getBodyBytes() {
+        return body;
+    }
+
+    public int getContentLength() {
+        return body.length;
+    }
+
+    public void writeBody(OutputStream out) throws IOException {
+        out.write(body);
+    }
+
+    /**
+     * @return the character encoding of the body: the charset of the Content-Type header,
+     *     or ISO-8859-1 if there is none or it is not supported.
+     */
+    public String getCharacterEncoding() {
+        return headers.getCharacterEncoding();
+    }
+
+    /**
+     * @return the normalized response headers, shared by all results with the same headers.
+     */
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    public int getHeaderCount() {
+        return headers.size();
+    }
+
+    public String getHeaderName(int index) {
+        return headers.getName(index);
+    }
+
+    public String getHeaderValue(int index) {
+        return headers.getValue(index);
+    }
+
+    /**
+     * @return the response headers as an unmodifiable map, in their original order.
+     */
+    public Map<String, List<String>> getResponseHeaders() {
+        Map<String, List<String>> responseHeaders = Maps.newLinkedHashMap();
+        for (int i = 0; i < getHeaderCount(); i++) {
+            List<String> values = responseHeaders.get(getHeaderName(i));
+            if (values == null) {
+                values = Lists.newArrayListWithCapacity(1);
+                responseHeaders.put(getHeaderName(i), values);
+            }
+            values.add(getHeaderValue(i));
+        }
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            header.setValue(Collections.unmodifiableList(header.getValue()));
+        }
+        return Collections.unmodifiableMap(responseHeaders);
+    }
+
+    /**
+     * Serializes the result. The format is a version byte, the number of headers, each
+     * header's name and value in modified UTF-8, the body length and the body.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(SERIALIZATION_VERSION);
+        out.writeInt(getHeaderCount());
+        for (String nameOrValue : headers.namesAndValues) {
+            out.writeUTF(nameOrValue);
+        }
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    /**
+     * Reads a result written by {@link #writeTo}, with a body of at most
+     * {@link #DEFAULT_MAX_BODY_LENGTH} bytes.
+     */
+    public static SnapshotResult readFrom(DataInput in) throws IOException {
+        return readFrom(in, DEFAULT_MAX_BODY_LENGTH);
+    }
+
+    /**
+     * Reads a result written by {@link #writeTo}. Headers the result would not have been
+     * created with are dropped.
+     *
+     * @param maxBodyLength the maximum body length accepted.
+     * @throws IOException if the input is truncated, or has more than
+     *     {@link #MAX_HEADER_COUNT} headers or a longer body than maxBodyLength.
+     */
+    public static SnapshotResult readFrom(DataInput in, int maxBodyLength) throws IOException {
+        byte version = in.readByte();
+        if (version != SERIALIZATION_VERSION) {
+            throw new IOException("Unsupported snapshot result version: " + version);
+        }
+        int headerCount = in.readInt();
+        if ((headerCount < 0) || (headerCount > MAX_HEADER_COUNT)) {
+            throw new IOException("Invalid snapshot result header count: " + headerCount);
+        }
+        List<String> namesAndValues = Lists.newArrayListWithCapacity(2 * headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            String name = in.readUTF();
+            String value = in.readUTF();
+            if (isResultHeader(name)) {
+                namesAndValues.add(name);
+                namesAndValues.add(value);
+            }
+        }
+        int bodyLength = in.readInt();
+        if ((bodyLength < 0) || (bodyLength > maxBodyLength)) {
+            throw new IOException("Invalid snapshot result body length: " + bodyLength);
+        }
+        byte[] body = new byte[Math.min(bodyLength, BODY_READ_CHUNK_SIZE)];
+        in.readFully(body);
+        while (body.length < bodyLength) {
+            int read = body.length;
+            body = Arrays.copyOf(body, (int) Math.min(bodyLength, 2L * read));
+            in.readFully(body, read, body.length - read);
+        }
+        return new SnapshotResult(Headers.of(namesAndValues), body);
+    }
+
+    private static boolean isResultHeader(String name) {
+        // HttpURLConnection reports the status line as a header with a null name. The
+        // container sets the content length and date of the response itself.
+        return (name != null) &&
+                !name.equalsIgnoreCase("Content-Length") &&
+                !name.equalsIgnoreCase("Date") &&
+                !SeoFilter.hopByHopHeaders.containsHeader(name);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof SnapshotResult)) {
+            return false;
+        }
+        SnapshotResult other = (SnapshotResult) obj;
+        return headers.equals(other.headers) && Arrays.equals(body, other.body);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * headers.hashCode() + Arrays.hashCode(body);
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotResult(responseHeaders=" + getResponseHeaders() + ", contentLength=" + body.length + ")";
+    }
+
+    /**
+     * Normalized response headers, as a flat list of names and values. Interned, so equal
+     * headers are stored once and can be compared by identity.
+     */
+    public static final class Headers {
+        private final String[] namesAndValues;
+        private final String characterEncoding;
+        private final Charset charset;
+        private final int hashCode;
+
+        private Headers(String[] namesAndValues) {
+            this.namesAndValues = namesAndValues;
+            String encoding = parseCharacterEncoding(namesAndValues);
+            Charset parsedCharset = null;
+            try {
+                if ((encoding != null) && Charset.isSupported(encoding)) {
+                    parsedCharset = Charset.forName(encoding);
+                }
+            } catch (IllegalCharsetNameException e) {
+                // Not supported.
+            }
+            characterEncoding = (parsedCharset != null) ? encoding : DEFAULT_CHARACTER_ENCODING;
+            charset = (parsedCharset != null) ? parsedCharset : DEFAULT_CHARSET;
+            hashCode = Arrays.hashCode(namesAndValues);
+        }
+
+        /**
+         * @return the normalized, interned form of a header map.
+         */
+        static Headers of(Map<String, List<String>> responseHeaders) {
+            List<String> namesAndValues = Lists.newArrayList();
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                if (isResultHeader(header.getKey()) && (header.getValue() != null)) {
+                    for (String value : header.getValue()) {
+                        if (value != null) {
+                            namesAndValues.add(header.getKey());
+                            namesAndValues.add(value);
+                        }
+                    }
+                }
+            }
+            return of(namesAndValues);
+        }
+
+        private static Headers of(List<String> namesAndValues) {
+            return headersInterner.intern(new Headers(namesAndValues.toArray(new String[namesAndValues.size()])));
+        }
+
+        @Nullable
+        private static String parseCharacterEncoding(String[] namesAndValues) {
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                if (namesAndValues[i].equalsIgnoreCase("Content-Type")) {
+                    for (String param : namesAndValues[i + 1].split(";")) {
+                        String[] nameValue = param.trim().split("=", 2);
+                        if ((nameValue.length == 2) && nameValue[0].trim().equalsIgnoreCase("charset")) {
+                            return nameValue[1].trim().replace("\"", "");
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        public int size() {
+            return namesAndValues.length / 2;
+        }
+
+        public String getName(int index) {
+            return namesAndValues[2 * index];
+        }
+
+        public String getValue(int index) {
+            return namesAndValues[2 * index + 1];
+        }
+
+        /**
+         * @return the charset of the Content-Type header, or ISO-8859-1 if there is none or
+         *     it is not supported.
+         */
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        /**
+         * @return the headers without any header with the given name.
+         */
+        public Headers without(String name) {
+            List<String> kept = null;
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                if (namesAndValues[i].equalsIgnoreCase(name)) {
+                    if (kept == null) {
+                        kept = Lists.newArrayList(Arrays.asList(namesAndValues).subList(0, i));
+                    }
+                } else if (kept != null) {
+                    kept.add(namesAndValues[i]);
+                    kept.add(namesAndValues[i + 1]);
+                }
+            }
+            return (kept == null) ? this : of(kept);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof Headers) && Arrays.equals(namesAndValues, ((Headers) obj).namesAndValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
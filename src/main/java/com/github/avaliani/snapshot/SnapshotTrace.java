@@ -0,0 +1,204 @@
+package com.github.avaliani.snapshot;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The trace of one snapshot request. Continues the W3C trace context of the crawler request,
+ * if it has a valid "traceparent" header, or starts a new trace, and records how long each
+ * stage of the request takes.
+ *
+ * <p>A trace is used by one request thread at a time and is not thread safe, except for
+ * {@link #NONE}, which records nothing.
+ *
+ * @author avaliani
+ *
+ */
+public class SnapshotTrace {
+
+    public static final String TRACEPARENT_HEADER = "traceparent";
+
+    private static final Pattern TRACEPARENT_PATTERN =
+            Pattern.compile("([0-9a-f]{2})-([0-9a-f]{32})-([0-9a-f]{16})-([0-9a-f]{2})(-.*)?");
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+    private static final String INVALID_SPAN_ID = "0000000000000000";
+    private static final String NOT_SAMPLED_FLAGS = "00";
+    private static final Random random = new Random();
+
+    /**
+     * A trace that records nothing and propagates no trace context, for snapshot services
+     * whose configuration provides no trace.
+     */
+    public static final SnapshotTrace NONE = new SnapshotTrace();
+
+    @Nullable
+    private final SnapshotTracer tracer;
+    private final long startNanos = System.nanoTime();
+    private final String traceId;
+    @Nullable
+    private final String parentSpanId;
+    private final String spanId;
+    private final String flags;
+    @Nullable
+    private String childSpanId;
+    private final List<String> stages = Lists.newArrayList();
+    private final List<Long> stageDurationsNanos = Lists.newArrayList();
+
+    /**
+     * @param traceparent the crawler request's "traceparent" header, or null.
+     * @param tracer the tracer to report stage timings to, or null to only record them.
+     */
+    public SnapshotTrace(@Nullable String traceparent, @Nullable SnapshotTracer tracer) {
+        this.tracer = tracer;
+        Matcher matcher = (traceparent == null) ? null : TRACEPARENT_PATTERN.matcher(traceparent.trim());
+        if ((matcher != null) && matcher.matches() && !matcher.group(1).equals("ff") &&
+                !matcher.group(2).equals(INVALID_TRACE_ID) && !matcher.group(3).equals(INVALID_SPAN_ID)) {
+            traceId = matcher.group(2);
+            parentSpanId = matcher.group(3);
+            flags = matcher.group(4);
+        } else {
+            // Whether to sample a trace the crawler didn't start is left to downstream services.
+            traceId = randomHex(16);
+            parentSpanId = null;
+            flags = NOT_SAMPLED_FLAGS;
+        }
+        spanId = randomHex(8);
+    }
+
+    private SnapshotTrace() {
+        tracer = null;
+        traceId = INVALID_TRACE_ID;
+        parentSpanId = null;
+        spanId = INVALID_SPAN_ID;
+        flags = NOT_SAMPLED_FLAGS;
+    }
+
+    /**
+     * @return the trace of the request a snapshot service is configured for, or {@link #NONE}
+     *     if the configuration provides no trace.
+     */
+    public static SnapshotTrace forConfig(SnapshotServiceConfig config) {
+        if (config instanceof ExtendedSnapshotServiceConfig) {
+            SnapshotTrace trace = ((ExtendedSnapshotServiceConfig) config).getTrace();
+            if (trace != null) {
+                return trace;
+            }
+        }
+        return NONE;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the id of the SEO filter's span for the request.
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the id of the crawler request's span, or null if the trace was started by the
+     *     filter.
+     */
+    @Nullable
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * @return a "traceparent" header value for a request made by the filter on behalf of
+     *     this trace, identifying a new child span of the filter's span, or null for
+     *     {@link #NONE}.
+     */
+    @Nullable
+    public String newChildTraceparent() {
+        if (this == NONE) {
+            return null;
+        }
+        childSpanId = randomHex(8);
+        return "00-" + traceId + "-" + childSpanId + "-" + flags;
+    }
+
+    /**
+     * @return the span id of the "traceparent" most recently returned by
+     *     {@link #newChildTraceparent}, or null if there is none.
+     */
+    @Nullable
+    public String getChildSpanId() {
+        return childSpanId;
+    }
+
+    /**
+     * Records a stage that started at startNanos, as returned by {@link System#nanoTime()},
+     * and has just completed.
+     */
+    public void addSpan(String stage, long startNanos) {
+        addSpan(stage, startNanos, null);
+    }
+
+    /**
+     * Records a stage whose work was done in a child span, e.g. by the snapshot service that
+     * received {@link #newChildTraceparent}, so tracers can link the two.
+     *
+     * @param childSpanId the id of the child span, or null if there is none.
+     */
+    public void addSpan(String stage, long startNanos, @Nullable String childSpanId) {
+        if (this == NONE) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        stages.add(stage);
+        stageDurationsNanos.add(durationNanos);
+        if (tracer != null) {
+            tracer.span(this, stage, durationNanos, childSpanId);
+        }
+    }
+
+    /**
+     * Records the whole time spent on the request.
+     */
+    public void finish() {
+        addSpan("filter", startNanos);
+    }
+
+    /**
+     * @return a "Server-Timing" header value listing the stages recorded so far and the
+     *     total time elapsed.
+     */
+    public String getServerTiming() {
+        StringBuilder serverTiming = new StringBuilder();
+        for (int i = 0; i < stages.size(); i++) {
+            appendServerTiming(serverTiming, stages.get(i), stageDurationsNanos.get(i));
+        }
+        appendServerTiming(serverTiming, "total", System.nanoTime() - startNanos);
+        return serverTiming.toString();
+    }
+
+    private static void appendServerTiming(StringBuilder serverTiming, String name, long durationNanos) {
+        if (serverTiming.length() > 0) {
+            serverTiming.append(", ");
+        }
+        serverTiming.append(name).append(";dur=").append(TimeUnit.NANOSECONDS.toMicros(durationNanos) / 1000.0);
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        while (hex.length() < bytes * 2) {
+            long value = random.nextLong();
+            for (int i = 0; (i < 16) && (hex.length() < bytes * 2); i++) {
+                hex.append(Character.forDigit((int) (value & 0xf), 16));
+                value >>>= 4;
+            }
+        }
+        return hex.toString();
+    }
+}
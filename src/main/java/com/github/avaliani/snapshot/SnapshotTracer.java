@@ -0,0 +1,44 @@
+package com.github.avaliani.snapshot;
+
+import javax.annotation.Nullable;
+
+/**
+ * Receives the timings of the stages of snapshot requests, e.g. to export them to a
+ * distributed tracing system.
+ *
+ * <p>The stages reported are:
+ * <ul>
+ *   <li>handler - {@link SeoFilterEventHandler#beforeSnapshot}.</li>
+ *   <li>bundle - looking up a pre-rendered snapshot, reported for bundle hits.</li>
+ *   <li>cache - looking up a cached snapshot, reported for cache hits.</li>
+ *   <li>admission - waiting to be admitted by the snapshot concurrency limits.</li>
+ *   <li>engine - waiting for a free {@link HtmlUnitSnapshotService} engine.</li>
+ *   <li>provider - waiting for the snapshot service to render the page and start responding.</li>
+ *   <li>transfer - reading the snapshot from the snapshot service.</li>
+ *   <li>response - writing the snapshot to the crawler.</li>
+ *   <li>afterSnapshot - {@link SeoFilterEventHandler#afterSnapshot}, or queueing the snapshot
+ *     for a batching handler.</li>
+ *   <li>filter - the whole time spent in the SEO filter.</li>
+ * </ul>
+ *
+ * <p>The filter creates one tracer per host profile and shares it between all requests to the
+ * profile's hosts, so implementations must be thread safe. Spans are reported on the request
+ * thread, so implementations should not block.
+ *
+ * @author avaliani
+ *
+ */
+public interface SnapshotTracer {
+
+    /**
+     * Invoked when a stage of a snapshot request completes.
+     *
+     * @param trace the trace of the request.
+     * @param stage the name of the stage.
+     * @param durationNanos how long the stage took.
+     * @param childSpanId the span id sent to the snapshot service in the "traceparent" header,
+     *     for the provider and transfer stages, so the service's spans can be linked to the
+     *     stage. Null for other stages.
+     */
+    void span(SnapshotTrace trace, String stage, long durationNanos, @Nullable String childSpanId);
+}
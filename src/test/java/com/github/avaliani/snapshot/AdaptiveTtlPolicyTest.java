@@ -0,0 +1,102 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashCode;
+
+public class AdaptiveTtlPolicyTest {
+
+    private static final long MIN_TTL = 100;
+    private static final long MAX_TTL = 100000;
+    /** Start of the test clock. Zero means "never" to the policy. */
+    private static final long T = 1000000000L;
+
+    private final AdaptiveTtlPolicy policy = new AdaptiveTtlPolicy(MIN_TTL, MAX_TTL, 0.5, 100);
+
+    private static HashCode content(int version) {
+        return HashCode.fromInt(version);
+    }
+
+    /**
+     * Snapshots the url with new content every changeInterval, starting at start.
+     *
+     * @return the TTL of the last snapshot.
+     */
+    private long recordChanges(String url, long start, long changeInterval, int changes) {
+        long ttl = 0;
+        for (int i = 0; i <= changes; i++) {
+            ttl = policy.recordSnapshot(url, content(i), start + (i * changeInterval));
+        }
+        return ttl;
+    }
+
+    @Test
+    public void firstSnapshotUsesTheMinimumTtl() {
+        assertEquals(MIN_TTL, policy.recordSnapshot("http://example.com/", content(0), T));
+    }
+
+    @Test
+    public void unchangedContentLengthensTheTtl() {
+        String url = "http://example.com/";
+        policy.recordSnapshot(url, content(0), T);
+        assertEquals(5000, policy.recordSnapshot(url, content(0), T + 10000));
+        assertEquals(15000, policy.recordSnapshot(url, content(0), T + 30000));
+    }
+
+    @Test
+    public void repeatedChangesShortenTheTtl() {
+        String url = "http://example.com/";
+        policy.recordSnapshot(url, content(0), T);
+        long stableTtl = policy.recordSnapshot(url, content(0), T + 60000);
+        assertEquals(30000, stableTtl);
+
+        // The first change is estimated to have happened halfway between the snapshots.
+        long ttl = policy.recordSnapshot(url, content(1), T + 62000);
+        assertEquals(30500, ttl);
+        for (int i = 2; i <= 10; i++) {
+            long nextTtl = policy.recordSnapshot(url, content(i), T + 60000 + (i * 2000));
+            assertTrue(nextTtl < ttl);
+            ttl = nextTtl;
+        }
+        // Approaching half the 2 second change interval.
+        assertTrue(String.valueOf(ttl), (ttl >= 1000) && (ttl < 3000));
+    }
+
+    @Test
+    public void longRequestIntervalRaisesTheTtl() {
+        String requested = "http://example.com/requested";
+        policy.recordRequest(requested, T - 120000);
+        policy.recordRequest(requested, T - 60000);
+        policy.recordRequest(requested, T);
+        assertEquals(30000, recordChanges(requested, T, 2000, 10));
+        assertTrue(recordChanges("http://example.com/unrequested", T, 2000, 10) < 3000);
+    }
+
+    @Test
+    public void ttlIsClampedToTheBounds() {
+        String stable = "http://example.com/stable";
+        policy.recordSnapshot(stable, content(0), T);
+        assertEquals(MAX_TTL, policy.recordSnapshot(stable, content(0), T + 1000000));
+
+        String volatilePage = "http://example.com/volatile";
+        policy.recordSnapshot(volatilePage, content(0), T);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(MIN_TTL, policy.recordSnapshot(volatilePage, content(i), T + (i * 100)));
+        }
+    }
+
+    @Test
+    public void historiesBeyondTheLimitAreDiscarded() {
+        AdaptiveTtlPolicy smallPolicy = new AdaptiveTtlPolicy(MIN_TTL, MAX_TTL, 0.5, 1);
+        String a = "http://example.com/a";
+        smallPolicy.recordSnapshot(a, content(0), T);
+        assertEquals(5000, smallPolicy.recordSnapshot(a, content(0), T + 10000));
+
+        smallPolicy.recordSnapshot("http://example.com/b", content(0), T + 10000);
+        // a's history was discarded, so its snapshot is treated as its first.
+        assertEquals(MIN_TTL, smallPolicy.recordSnapshot(a, content(0), T + 20000));
+    }
+}
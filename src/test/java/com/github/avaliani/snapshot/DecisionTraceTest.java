@@ -0,0 +1,129 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class DecisionTraceTest {
+
+    private final List<String> messages = Lists.newArrayList();
+    private Logger log;
+
+    @Before
+    public void recordLog() {
+        log = Logger.getAnonymousLogger();
+        log.setUseParentHandlers(false);
+        log.setLevel(Level.FINE);
+        log.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (messages) {
+                    messages.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private DecisionTrace newTrace(double sampleRate, int bufferSize) {
+        // Flushed by close() only.
+        return new DecisionTrace(log, Level.FINE, sampleRate, bufferSize, 60000);
+    }
+
+    private static void record(DecisionTrace trace, int page) {
+        trace.record("http://example.com/" + page, null, 80, 8080, "Googlebot", null,
+                InterceptDecision.CRAWLER);
+    }
+
+    private static int countSampled(DecisionTrace trace, int decisions) {
+        int sampled = 0;
+        for (int i = 0; i < decisions; i++) {
+            if (trace.isSampled()) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+    @Test
+    public void samplesAtTheConfiguredRate() {
+        DecisionTrace never = newTrace(0, 16);
+        DecisionTrace always = newTrace(1, 16);
+        DecisionTrace quarter = newTrace(0.25, 16);
+        assertEquals(0, countSampled(never, 100));
+        assertEquals(100, countSampled(always, 100));
+        assertEquals(25, countSampled(quarter, 100));
+
+        // Nothing is sampled when the log level is off.
+        log.setLevel(Level.INFO);
+        assertEquals(0, countSampled(always, 100));
+        never.close();
+        always.close();
+        quarter.close();
+    }
+
+    @Test
+    public void logsRecordsOnFlush() {
+        DecisionTrace trace = newTrace(1, 16);
+        record(trace, 0);
+        record(trace, 1);
+        assertTrue(messages.isEmpty());
+        trace.close();
+        assertEquals(2, messages.size());
+        assertEquals("checking request http://example.com/0 (serverPort: 80, localPort: 8080) " +
+                "from User-Agent Googlebot and referer null: Defaulting to request intercept; intercept: yes",
+                messages.get(0));
+        assertEquals(0, trace.getDroppedRecords());
+    }
+
+    @Test
+    public void overflowDropsTheOldestRecords() {
+        // Rounded up to a buffer of 4.
+        DecisionTrace trace = newTrace(1, 3);
+        for (int i = 0; i < 10; i++) {
+            record(trace, i);
+        }
+        trace.close();
+        assertEquals(4, messages.size());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(messages.get(i), messages.get(i).contains("http://example.com/" + (i + 6) + " "));
+        }
+        assertEquals(6, trace.getDroppedRecords());
+    }
+
+    @Test
+    public void sharedFlusherStopsAfterTheLastClose() {
+        assertFalse(DecisionTrace.isFlusherRunning());
+        DecisionTrace first = newTrace(1, 16);
+        DecisionTrace second = newTrace(1, 16);
+        assertTrue(DecisionTrace.isFlusherRunning());
+        first.close();
+        assertTrue(DecisionTrace.isFlusherRunning());
+        second.close();
+        assertFalse(DecisionTrace.isFlusherRunning());
+
+        // A new trace starts it again.
+        DecisionTrace third = newTrace(1, 16);
+        assertTrue(DecisionTrace.isFlusherRunning());
+        third.close();
+        assertFalse(DecisionTrace.isFlusherRunning());
+    }
+}
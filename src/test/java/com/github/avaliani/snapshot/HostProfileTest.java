@@ -0,0 +1,97 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class HostProfileTest {
+
+    private final Map<String, String> parameters = Maps.newLinkedHashMap();
+    private final SeoFilter filter = new SeoFilter();
+
+    @Before
+    public void setParameters() {
+        parameters.put("hostProfiles", "acme=acme.com,WWW.Acme.com;globex=globex.com");
+        parameters.put("whitelist", "/global");
+        parameters.put("blacklist", "/private");
+        parameters.put("snapshotServiceToken", "global-token");
+        parameters.put("acme.whitelist", "/acme");
+        parameters.put("acme.snapshotServiceToken", "acme-token");
+        parameters.put("globex.snapshotServiceToken", "globex-token");
+    }
+
+    @After
+    public void destroyFilter() {
+        filter.destroy();
+    }
+
+    private void initFilter() throws ServletException {
+        filter.init(new MapFilterConfig("seo", parameters));
+    }
+
+    @Test
+    public void resolvesHostsCaseInsensitively() throws ServletException {
+        initFilter();
+        HostProfile acme = filter.getHostProfile("acme.com");
+        assertEquals("acme", acme.getName());
+        assertSame(acme, filter.getHostProfile("www.acme.com"));
+        assertSame(acme, filter.getHostProfile("ACME.COM"));
+        assertEquals("globex", filter.getHostProfile("Globex.com").getName());
+    }
+
+    @Test
+    public void unknownHostsUseTheDefaultProfile() throws ServletException {
+        initFilter();
+        HostProfile unknown = filter.getHostProfile("initech.com");
+        assertEquals(HostProfile.DEFAULT_PROFILE_NAME, unknown.getName());
+        assertEquals(Lists.newArrayList("/global"), unknown.getConfig().getWhitelist());
+    }
+
+    @Test
+    public void withoutProfilesEveryHostUsesTheDefaultProfile() throws ServletException {
+        parameters.remove("hostProfiles");
+        initFilter();
+        assertEquals(HostProfile.DEFAULT_PROFILE_NAME, filter.getHostProfile("acme.com").getName());
+    }
+
+    @Test
+    public void profileParametersOverrideFilterParameters() throws ServletException {
+        initFilter();
+        assertEquals(Lists.newArrayList("/acme"), filter.getHostProfile("acme.com").getConfig().getWhitelist());
+        assertEquals(Lists.newArrayList("/global"), filter.getHostProfile("globex.com").getConfig().getWhitelist());
+    }
+
+    @Test
+    public void unsetProfileParametersInheritFilterParameters() throws ServletException {
+        initFilter();
+        assertEquals(Lists.newArrayList("/private"), filter.getHostProfile("acme.com").getConfig().getBlacklist());
+        parameters.remove("blacklist");
+        assertNull(filter.getHostProfile("acme.com").getConfig().getBlacklist());
+    }
+
+    @Test
+    public void profilesOnlySeeTheirOwnParameterNames() {
+        SeoFilterConfig.HostProfileFilterConfig acmeConfig = new SeoFilterConfig.HostProfileFilterConfig(
+                new MapFilterConfig("seo", parameters), "acme", ImmutableSet.of("acme", "globex"));
+        Set<Object> names = Sets.newHashSet(Collections.list(acmeConfig.getInitParameterNames()));
+        assertEquals(ImmutableSet.<Object>of("hostProfiles", "whitelist", "blacklist", "snapshotServiceToken"),
+                names);
+        assertEquals("acme-token", acmeConfig.getInitParameter("snapshotServiceToken"));
+        assertNull(acmeConfig.getInitParameter("globex.snapshotServiceToken"));
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Renders pages served from a local http server, so no network access is needed.
+ */
+public class HtmlUnitSnapshotServiceTest {
+
+    private HttpServer server;
+    private String baseUrl;
+    private final Map<String, String> parameters = Maps.newHashMap();
+    private final Map<String, Closeable> sharedResources = Maps.newHashMap();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/page", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "<html><body><div id=\"content\"></div><script>" +
+                        "document.getElementById('content').innerHTML = 'rendered ' + location.hash;" +
+                        "</script></body></html>");
+            }
+        });
+        server.createContext("/loop", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "<html><body><script>while (true) {}</script></body></html>");
+            }
+        });
+        server.createContext("/hang", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, "<html><body>late</body></html>");
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        parameters.put("htmlUnitPoolSize", "1");
+        parameters.put("htmlUnitRenderTimeoutMillis", "500");
+        parameters.put("htmlUnitNetworkIdleMillis", "50");
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        for (Closeable resource : sharedResources.values()) {
+            resource.close();
+        }
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private HtmlUnitSnapshotService newService() {
+        HtmlUnitSnapshotService service = new HtmlUnitSnapshotService();
+        service.init(new TestConfig());
+        return service;
+    }
+
+    @Test
+    public void rendersJavascriptAndEscapedFragments() throws IOException {
+        SnapshotResult result = newService().snapshot(baseUrl + "/page?_escaped_fragment_=/a%20b",
+                Maps.<String, List<String>>newHashMap());
+        assertNotNull(result);
+        assertTrue(result.getSnapshot(), result.getSnapshot().contains("rendered #!/a b"));
+        assertEquals("UTF-8", result.getCharacterEncoding());
+    }
+
+    @Test
+    public void unresponsivePageFails() throws IOException {
+        long start = System.currentTimeMillis();
+        assertNull(newService().snapshot(baseUrl + "/hang", Maps.<String, List<String>>newHashMap()));
+        assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+
+    @Test
+    public void runawayScriptIsBounded() throws IOException {
+        long start = System.currentTimeMillis();
+        newService().snapshot(baseUrl + "/loop", Maps.<String, List<String>>newHashMap());
+        assertTrue(System.currentTimeMillis() - start < 4000);
+
+        // The engine is usable again.
+        assertNotNull(newService().snapshot(baseUrl + "/page", Maps.<String, List<String>>newHashMap()));
+    }
+
+    @Test
+    public void servicesShareTheConfigurationsPool() {
+        newService();
+        newService();
+        assertEquals(1, sharedResources.size());
+    }
+
+    @Test
+    public void rejectsEmptyPool() {
+        parameters.put("htmlUnitPoolSize", "0");
+        try {
+            newService();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private class TestConfig implements ExtendedSnapshotServiceConfig {
+        @Override
+        public String getServiceToken() {
+            return null;
+        }
+
+        @Override
+        public String getServiceUrl() {
+            return null;
+        }
+
+        @Override
+        public String getRequestScheme() {
+            return "http";
+        }
+
+        @Override
+        public Map<String, List<String>> getRequestHeaders() {
+            return Maps.newHashMap();
+        }
+
+        @Override
+        public SnapshotTrace getTrace() {
+            return new SnapshotTrace(null, null);
+        }
+
+        @Override
+        public Level getLoggingLevel() {
+            return Level.FINE;
+        }
+
+        @Override
+        public String getServiceParameter(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public <T extends Closeable> T getSharedResource(String name, Supplier<T> factory) {
+            @SuppressWarnings("unchecked")
+            T resource = (T) sharedResources.get(name);
+            if (resource == null) {
+                resource = factory.get();
+                sharedResources.put(name, resource);
+            }
+            return resource;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class SlabSnapshotCacheTest {
+
+    private static final int SLAB_SIZE = 4096;
+
+    private static SlabSnapshotCache newCache(int slabs) {
+        return new SlabSnapshotCache(slabs * SLAB_SIZE, SLAB_SIZE, 60000, null, Level.FINE);
+    }
+
+    private static byte[] body(int length, int fill) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) fill);
+        return body;
+    }
+
+    private static SnapshotResult result(byte[] body) {
+        Map<String, List<String>> headers = Maps.newHashMap();
+        headers.put("Content-Type", Lists.newArrayList("text/html; charset=UTF-8"));
+        return new SnapshotResult(body, headers);
+    }
+
+    private static byte[] read(SlabSnapshotCache.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entry.writeBody(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void evictedBodyStaysReadableWhileHeld() throws IOException {
+        // One slab of four 1 KB chunks.
+        SlabSnapshotCache cache = newCache(1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache.put("http://example.com/" + i, result(body(1000, i))));
+        }
+        SlabSnapshotCache.Entry held = cache.get("http://example.com/0");
+        assertNotNull(held);
+        cache.remove("http://example.com/0");
+        assertNull(cache.get("http://example.com/0"));
+
+        // The held chunk is not reused, so another url is evicted to make room.
+        assertTrue(cache.put("http://example.com/4", result(body(1000, 4))));
+        assertEquals(3, cache.getUrlCount());
+        assertArrayEquals(body(1000, 0), read(held));
+        held.release();
+
+        // Now the chunk is free.
+        assertTrue(cache.put("http://example.com/5", result(body(1000, 5))));
+        assertEquals(4, cache.getUrlCount());
+        for (int i = 1; i <= 5; i++) {
+            SlabSnapshotCache.Entry entry = cache.get("http://example.com/" + i);
+            if (entry != null) {
+                assertArrayEquals(body(1000, i), read(entry));
+                entry.release();
+            }
+        }
+    }
+
+    @Test
+    public void sharesIdenticalBodies() throws IOException {
+        SlabSnapshotCache cache = newCache(1);
+        assertTrue(cache.put("http://example.com/a", result(body(1000, 1))));
+        assertTrue(cache.put("http://example.com/b", result(body(1000, 1))));
+        assertTrue(cache.put("http://example.com/c", result(body(1000, 2))));
+        assertEquals(3, cache.getUrlCount());
+        assertEquals(2, cache.getBodyCount());
+
+        // A shared body stays cached while any url still points to it.
+        cache.remove("http://example.com/a");
+        SlabSnapshotCache.Entry entry = cache.get("http://example.com/b");
+        assertArrayEquals(body(1000, 1), read(entry));
+        entry.release();
+        assertEquals(2, cache.getBodyCount());
+    }
+
+    @Test
+    public void evictsUnsharedBodiesFirst() throws IOException {
+        SlabSnapshotCache cache = newCache(1);
+        assertTrue(cache.put("http://example.com/a", result(body(1000, 1))));
+        assertTrue(cache.put("http://example.com/b", result(body(1000, 1))));
+        for (int i = 2; i < 5; i++) {
+            assertTrue(cache.put("http://example.com/" + i, result(body(1000, i))));
+        }
+        // Evicting a or b would free nothing.
+        assertTrue(cache.put("http://example.com/5", result(body(1000, 5))));
+        assertTrue(cache.contains("http://example.com/a"));
+        assertTrue(cache.contains("http://example.com/b"));
+        assertFalse(cache.contains("http://example.com/2"));
+        assertEquals(5, cache.getUrlCount());
+    }
+
+    @Test
+    public void evictsSharedBodiesWhenNothingElseIsLeft() throws IOException {
+        SlabSnapshotCache cache = newCache(1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cache.put("http://example.com/" + i + "/a", result(body(1000, i))));
+            assertTrue(cache.put("http://example.com/" + i + "/b", result(body(1000, i))));
+        }
+        assertTrue(cache.put("http://example.com/4", result(body(1000, 4))));
+        assertFalse(cache.contains("http://example.com/0/a"));
+        assertFalse(cache.contains("http://example.com/0/b"));
+        assertEquals(7, cache.getUrlCount());
+        assertEquals(4, cache.getBodyCount());
+    }
+
+    @Test
+    public void reassignsSlabsBetweenSizeClasses() throws IOException {
+        SlabSnapshotCache cache = newCache(3);
+        for (int i = 0; i < 12; i++) {
+            assertTrue(cache.put("http://example.com/small/" + i, result(body(1000, i))));
+        }
+        // Small pages hold every slab, so a large page needs one of theirs.
+        assertTrue(cache.put("http://example.com/large", result(body(3000, 100))));
+        assertEquals(1, cache.getReassignedSlabCount());
+        assertEquals(9, cache.getUrlCount());
+        SlabSnapshotCache.Entry entry = cache.get("http://example.com/large");
+        assertArrayEquals(body(3000, 100), read(entry));
+        entry.release();
+
+        // With two slabs left the small pages evict among themselves.
+        assertTrue(cache.put("http://example.com/small/12", result(body(1000, 12))));
+        assertEquals(1, cache.getReassignedSlabCount());
+        assertTrue(cache.contains("http://example.com/large"));
+    }
+
+    @Test
+    public void drainedSlabIsReassignedOnceReadersRelease() throws IOException {
+        SlabSnapshotCache cache = newCache(1);
+        assertTrue(cache.put("http://example.com/small", result(body(1000, 1))));
+        SlabSnapshotCache.Entry held = cache.get("http://example.com/small");
+
+        assertFalse(cache.put("http://example.com/large", result(body(3000, 2))));
+        assertFalse(cache.contains("http://example.com/small"));
+        assertArrayEquals(body(1000, 1), read(held));
+        held.release();
+
+        assertTrue(cache.put("http://example.com/large", result(body(3000, 2))));
+        assertEquals(1, cache.getReassignedSlabCount());
+    }
+}
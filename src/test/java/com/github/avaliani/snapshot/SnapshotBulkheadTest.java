@@ -0,0 +1,141 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SnapshotBulkheadTest {
+
+    private final CrawlerClass search = new CrawlerClass("search", 0, Lists.newArrayList("googlebot"), null);
+    private final CrawlerClass social = new CrawlerClass("social", 1, Lists.newArrayList("twitterbot"), null);
+    private final CrawlerClass defaultClass =
+            new CrawlerClass(CrawlerClass.DEFAULT_CLASS_NAME, 2, Collections.<String>emptyList(), null);
+
+    private SnapshotBulkhead newBulkhead(int maxConcurrent, int maxQueued, long queueTimeoutMillis,
+            CrawlerClass... crawlerClasses) {
+        return new SnapshotBulkhead(Lists.newArrayList(crawlerClasses), maxConcurrent, maxQueued,
+                queueTimeoutMillis);
+    }
+
+    @Test
+    public void matchesUserAgents() {
+        SnapshotBulkhead bulkhead = newBulkhead(1, 1, 0, search, social, defaultClass);
+        assertEquals(search, bulkhead.getCrawlerClass("Mozilla/5.0 (compatible; Googlebot/2.1)"));
+        assertEquals(social, bulkhead.getCrawlerClass("Twitterbot/1.0"));
+        assertEquals(defaultClass, bulkhead.getCrawlerClass("curl/7.0"));
+        assertEquals(defaultClass, bulkhead.getCrawlerClass(null));
+    }
+
+    @Test
+    public void admitsWaitersInPriorityOrder() throws Exception {
+        SnapshotBulkhead bulkhead = newBulkhead(1, 10, 10000, search, social, defaultClass);
+        assertTrue(bulkhead.tryAcquire(search));
+
+        List<String> admitted = Collections.synchronizedList(Lists.<String>newArrayList());
+        Thread defaultWaiter = startWaiter(bulkhead, defaultClass, admitted);
+        awaitQueueLength(bulkhead, 1);
+        Thread socialWaiter = startWaiter(bulkhead, social, admitted);
+        awaitQueueLength(bulkhead, 2);
+        Thread searchWaiter = startWaiter(bulkhead, search, admitted);
+        awaitQueueLength(bulkhead, 3);
+
+        bulkhead.release();
+        for (Thread waiter : Lists.newArrayList(searchWaiter, socialWaiter, defaultWaiter)) {
+            waiter.join(10000);
+        }
+        assertEquals(Lists.newArrayList("search", "social", "default"), admitted);
+    }
+
+    @Test
+    public void timesOutAndDisplacesLowerPriorityWaiters() throws Exception {
+        SnapshotBulkhead bulkhead = newBulkhead(1, 1, 200, search, social, defaultClass);
+        assertTrue(bulkhead.tryAcquire(search));
+
+        long start = System.nanoTime();
+        assertFalse(bulkhead.tryAcquire(defaultClass));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertEquals(0, bulkhead.getQueueLength());
+
+        final SnapshotBulkhead fullQueue = newBulkhead(1, 1, 10000, search, social, defaultClass);
+        assertTrue(fullQueue.tryAcquire(search));
+        final boolean[] defaultAdmitted = {true};
+        Thread defaultWaiter = startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    defaultAdmitted[0] = fullQueue.tryAcquire(defaultClass);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        awaitQueueLength(fullQueue, 1);
+        // The queue is full, so the search request displaces the default one.
+        startWaiter(fullQueue, search, Lists.<String>newArrayList());
+        defaultWaiter.join(10000);
+        assertFalse(defaultWaiter.isAlive());
+        assertFalse(defaultAdmitted[0]);
+        // A request that is not of higher priority than the queued one is rejected at once.
+        assertFalse(fullQueue.tryAcquire(social));
+    }
+
+    @Test
+    public void rejectedRequestsDoNotUseRateTokens() throws Exception {
+        CrawlerClass limited = new CrawlerClass(CrawlerClass.DEFAULT_CLASS_NAME, 0,
+                Collections.<String>emptyList(), 1.0);
+        SnapshotBulkhead bulkhead = newBulkhead(1, 0, 0, limited);
+        assertTrue(bulkhead.tryAcquire(limited));
+        // Not admitted: the only slot is taken and there is no queue.
+        for (int i = 0; i < 10; i++) {
+            assertFalse(bulkhead.tryAcquire(limited));
+        }
+        bulkhead.release();
+        Thread.sleep(1100);
+        assertTrue(bulkhead.tryAcquire(limited));
+        bulkhead.release();
+        // Over the rate limit: the slot is handed back.
+        assertFalse(bulkhead.tryAcquire(limited));
+        Thread.sleep(1100);
+        assertTrue(bulkhead.tryAcquire(limited));
+    }
+
+    private static Thread startWaiter(final SnapshotBulkhead bulkhead, final CrawlerClass crawlerClass,
+            final List<String> admitted) {
+        return startThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (bulkhead.tryAcquire(crawlerClass)) {
+                        admitted.add(crawlerClass.getName());
+                        bulkhead.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private static Thread startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueLength(SnapshotBulkhead bulkhead, int queueLength) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((bulkhead.getQueueLength() != queueLength) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+        assertEquals(queueLength, bulkhead.getQueueLength());
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class SnapshotBundleTest {
+
+    /** Snapshots returned by {@link StubSnapshotService}, by url. */
+    private static final Map<String, SnapshotResult> results = Maps.newConcurrentMap();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File rootDir;
+    private SnapshotBundleBuilder builder;
+    private final List<SnapshotBundle> bundles = Lists.newArrayList();
+
+    @Before
+    public void createBuilder() {
+        rootDir = temporaryFolder.getRoot();
+        Map<String, String> parameters = Maps.newHashMap();
+        parameters.put("snapshotService", StubSnapshotService.class.getName());
+        builder = new SnapshotBundleBuilder(rootDir, new SeoFilterConfig(new MapFilterConfig("test", parameters)));
+    }
+
+    @After
+    public void closeBundles() {
+        for (SnapshotBundle bundle : bundles) {
+            bundle.close();
+        }
+        results.clear();
+    }
+
+    private SnapshotBundle openBundle() {
+        // Reloaded by the test only.
+        SnapshotBundle bundle = new SnapshotBundle(rootDir, 3600000);
+        bundles.add(bundle);
+        return bundle;
+    }
+
+    private static SnapshotResult page(String body) {
+        Map<String, List<String>> headers = Maps.newHashMap();
+        headers.put("Content-Type", Lists.newArrayList("text/html; charset=UTF-8"));
+        return new SnapshotResult(body, headers);
+    }
+
+    private static byte[] bytes(String body) throws IOException {
+        return body.getBytes("UTF-8");
+    }
+
+    private String build(String... urls) throws IOException, InterruptedException {
+        // Bundles are named by the time they are built.
+        Thread.sleep(2);
+        return builder.build(Lists.newArrayList(urls), 2);
+    }
+
+    private static byte[] readUncompressed(SnapshotBundle.Page page) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = page.open();
+        try {
+            page.writeUncompressed(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readCompressed(SnapshotBundle.Page page) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = page.open();
+        try {
+            page.writeCompressed(in, Channels.newChannel(out));
+        } finally {
+            in.close();
+        }
+        assertEquals(page.getCompressedLength(), out.size());
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void servesBuiltPages() throws Exception {
+        results.put("http://example.com/a", page("<html>a</html>"));
+        results.put("http://example.com/b", page("<html>b</html>"));
+        String bundleName = build("http://example.com/a", "http://example.com/b", "http://example.com/failed");
+        builder.activate(bundleName);
+
+        SnapshotBundle bundle = openBundle();
+        assertEquals(bundleName, bundle.getBundleName());
+        // The scheme is ignored.
+        SnapshotBundle.Page page = bundle.get("https://example.com/a");
+        assertNotNull(page);
+        assertArrayEquals(bytes("<html>a</html>"), readCompressed(page));
+        assertArrayEquals(bytes("<html>a</html>"), readUncompressed(page));
+        assertEquals("Content-Type", page.getResponseHeaders().getName(0));
+        assertEquals("text/html; charset=UTF-8", page.getResponseHeaders().getValue(0));
+        assertArrayEquals(bytes("<html>b</html>"), readUncompressed(bundle.get("http://example.com/b")));
+        // Failed snapshots are left out, so they are snapshotted live.
+        assertNull(bundle.get("http://example.com/failed"));
+    }
+
+    @Test
+    public void identicalPagesShareAFile() throws Exception {
+        results.put("http://example.com/a", page("<html>same</html>"));
+        results.put("http://example.com/a?page=1", page("<html>same</html>"));
+        results.put("http://example.com/b", page("<html>other</html>"));
+        String bundleName = build("http://example.com/a", "http://example.com/a?page=1", "http://example.com/b");
+        assertEquals(2, new File(new File(rootDir, bundleName), SnapshotBundle.PAGES_DIR).list().length);
+
+        builder.activate(bundleName);
+        SnapshotBundle bundle = openBundle();
+        assertArrayEquals(bytes("<html>same</html>"), readUncompressed(bundle.get("http://example.com/a?page=1")));
+    }
+
+    @Test
+    public void decodesGzipEncodedPages() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        out.write(bytes("<html>gzipped</html>"));
+        out.close();
+        Map<String, List<String>> headers = Maps.newHashMap();
+        headers.put("Content-Encoding", Lists.newArrayList("gzip"));
+        results.put("http://example.com/gzip", new SnapshotResult(gzipped.toByteArray(), headers));
+        headers.put("Content-Encoding", Lists.newArrayList("br"));
+        results.put("http://example.com/br", new SnapshotResult(bytes("not really brotli"), headers));
+        builder.activate(build("http://example.com/gzip", "http://example.com/br"));
+
+        SnapshotBundle bundle = openBundle();
+        SnapshotBundle.Page page = bundle.get("http://example.com/gzip");
+        assertArrayEquals(bytes("<html>gzipped</html>"), readCompressed(page));
+        assertEquals(0, page.getResponseHeaders().size());
+        assertNull(bundle.get("http://example.com/br"));
+    }
+
+    @Test
+    public void reloadSwitchesToTheActivatedBundle() throws Exception {
+        results.put("http://example.com/a", page("<html>first</html>"));
+        String first = build("http://example.com/a");
+        results.put("http://example.com/a", page("<html>second</html>"));
+        String second = build("http://example.com/a");
+        builder.activate(first);
+
+        SnapshotBundle bundle = openBundle();
+        assertEquals(first, bundle.getBundleName());
+        builder.activate(second);
+        assertArrayEquals(bytes("<html>first</html>"), readUncompressed(bundle.get("http://example.com/a")));
+        bundle.reload();
+        assertEquals(second, bundle.getBundleName());
+        assertArrayEquals(bytes("<html>second</html>"), readUncompressed(bundle.get("http://example.com/a")));
+
+        // Rolling back.
+        builder.activate(first);
+        bundle.reload();
+        assertEquals(first, bundle.getBundleName());
+    }
+
+    @Test
+    public void missingOrEmptyCurrentFileKeepsTheLoadedBundle() throws Exception {
+        results.put("http://example.com/a", page("<html>a</html>"));
+        String bundleName = build("http://example.com/a");
+        assertNull(openBundle().getBundleName());
+        builder.activate(bundleName);
+        SnapshotBundle bundle = openBundle();
+
+        File currentFile = new File(rootDir, SnapshotBundle.CURRENT_FILE);
+        FileUtils.forceDelete(currentFile);
+        bundle.reload();
+        assertEquals(bundleName, bundle.getBundleName());
+        assertNotNull(bundle.get("http://example.com/a"));
+
+        FileUtils.writeStringToFile(currentFile, " \n", SnapshotBundle.INDEX_ENCODING);
+        bundle.reload();
+        assertEquals(bundleName, bundle.getBundleName());
+        assertNotNull(bundle.get("http://example.com/a"));
+    }
+
+    @Test
+    public void rejectsUnsupportedIndexVersions() throws Exception {
+        results.put("http://example.com/a", page("<html>a</html>"));
+        String good = build("http://example.com/a");
+        File badDir = new File(rootDir, "bundle-bad");
+        FileUtils.writeStringToFile(new File(badDir, SnapshotBundle.INDEX_FILE),
+                "snapshot-bundle 99\nexample.com/a\tpage.gz\t10\n", SnapshotBundle.INDEX_ENCODING);
+
+        builder.activate("bundle-bad");
+        assertNull(openBundle().getBundleName());
+
+        builder.activate(good);
+        SnapshotBundle bundle = openBundle();
+        builder.activate("bundle-bad");
+        bundle.reload();
+        assertEquals(good, bundle.getBundleName());
+        assertNotNull(bundle.get("http://example.com/a"));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToActivateMissingBundles() throws IOException {
+        builder.activate("bundle-missing");
+    }
+
+    /**
+     * Returns the snapshots in {@link #results}, or null for other urls.
+     */
+    public static class StubSnapshotService implements SnapshotService {
+        @Override
+        public void init(SnapshotServiceConfig config) {
+        }
+
+        @Override
+        public SnapshotResult snapshot(String urlToSnapshot, Map<String, List<String>> headers) {
+            return results.get(urlToSnapshot);
+        }
+
+        @Override
+        public boolean isSnapshotRequest(HttpServletRequest request) {
+            return false;
+        }
+    }
+}
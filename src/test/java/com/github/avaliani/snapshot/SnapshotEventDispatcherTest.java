@@ -0,0 +1,241 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SnapshotEventDispatcherTest {
+
+    private final RecordingHandler handler = new RecordingHandler();
+    private SnapshotEventDispatcher dispatcher;
+
+    @After
+    public void shutdownDispatcher() {
+        handler.unblock();
+        if (dispatcher != null) {
+            dispatcher.shutdown(1000);
+        }
+    }
+
+    private SnapshotEventDispatcher newDispatcher(int queueSize, int workers, int batchSize,
+            SnapshotEventDispatcher.OverflowPolicy overflowPolicy) {
+        dispatcher = new SnapshotEventDispatcher("test", handler, queueSize, workers, batchSize,
+                overflowPolicy, Level.FINE, 0);
+        return dispatcher;
+    }
+
+    private static SnapshotEvent event(int page) {
+        return new SnapshotEvent("http://example.com/" + page, Collections.<String, List<String>>emptyMap(), null);
+    }
+
+    /**
+     * Fills a queue of two while the single worker is blocked handling page 0.
+     */
+    private void fillQueue() throws InterruptedException {
+        handler.block();
+        dispatcher.dispatch(event(0));
+        handler.awaitBlocked(1);
+        dispatcher.dispatch(event(1));
+        dispatcher.dispatch(event(2));
+    }
+
+    @Test
+    public void batchesDontExceedTheBatchSize() throws InterruptedException {
+        newDispatcher(100, 1, 3, SnapshotEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        handler.block();
+        dispatcher.dispatch(event(0));
+        handler.awaitBlocked(1);
+        for (int i = 1; i <= 10; i++) {
+            dispatcher.dispatch(event(i));
+        }
+        handler.unblock();
+        handler.awaitHandled(11);
+        for (List<SnapshotEvent> batch : handler.getBatches()) {
+            assertTrue(batch.size() <= 3);
+        }
+        assertEquals(urls(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10), handler.getHandledUrls());
+        assertEquals(11, dispatcher.getDispatchedEvents());
+        assertEquals(10, dispatcher.getMaxQueueDepth());
+    }
+
+    @Test
+    public void dropNewestDropsTheNewSnapshot() throws InterruptedException {
+        newDispatcher(2, 1, 10, SnapshotEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        fillQueue();
+        dispatcher.dispatch(event(3));
+        assertEquals(1, dispatcher.getDroppedEvents());
+        handler.unblock();
+        handler.awaitHandled(3);
+        assertEquals(urls(0, 1, 2), handler.getHandledUrls());
+    }
+
+    @Test
+    public void dropOldestDropsTheOldestQueuedSnapshot() throws InterruptedException {
+        newDispatcher(2, 1, 10, SnapshotEventDispatcher.OverflowPolicy.DROP_OLDEST);
+        fillQueue();
+        dispatcher.dispatch(event(3));
+        assertEquals(1, dispatcher.getDroppedEvents());
+        handler.unblock();
+        handler.awaitHandled(3);
+        assertEquals(urls(0, 2, 3), handler.getHandledUrls());
+    }
+
+    @Test
+    public void callerRunsHandlesTheSnapshotOnTheCallingThread() throws InterruptedException {
+        newDispatcher(2, 1, 10, SnapshotEventDispatcher.OverflowPolicy.CALLER_RUNS);
+        fillQueue();
+        handler.unblockCaller();
+        dispatcher.dispatch(event(3));
+        assertEquals(0, dispatcher.getDroppedEvents());
+        assertEquals(1, dispatcher.getCallerRunsEvents());
+        assertEquals(urls(3), handler.getHandledUrls(Thread.currentThread().getName()));
+        handler.unblock();
+        handler.awaitHandled(4);
+        assertEquals(3, dispatcher.getDispatchedEvents());
+    }
+
+    @Test
+    public void dropsSnapshotsDispatchedAfterShutdown() {
+        newDispatcher(10, 1, 10, SnapshotEventDispatcher.OverflowPolicy.CALLER_RUNS);
+        dispatcher.shutdown(1000);
+        dispatcher.dispatch(event(0));
+        assertEquals(1, dispatcher.getShutdownDroppedEvents());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertTrue(handler.getHandledUrls().isEmpty());
+    }
+
+    @Test
+    public void shutdownWaitsForAllWorkersUntilOneDeadline() throws InterruptedException {
+        newDispatcher(10, 3, 1, SnapshotEventDispatcher.OverflowPolicy.DROP_NEWEST);
+        handler.block();
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(event(i));
+        }
+        handler.awaitBlocked(3);
+        dispatcher.dispatch(event(3));
+        dispatcher.dispatch(event(4));
+
+        long start = System.currentTimeMillis();
+        dispatcher.shutdown(300);
+        long elapsed = System.currentTimeMillis() - start;
+        // Each of the three blocked workers doesn't get its own timeout.
+        assertTrue("Shutdown took " + elapsed + " ms", (elapsed >= 300) && (elapsed < 800));
+        // The queued snapshots are not passed to the handler once it may be destroyed.
+        assertEquals(2, dispatcher.getShutdownDroppedEvents());
+        handler.unblock();
+        Thread.sleep(100);
+        assertEquals(urls(0, 1, 2), sorted(handler.getHandledUrls()));
+    }
+
+    private static List<String> urls(int... pages) {
+        List<String> urls = Lists.newArrayList();
+        for (int page : pages) {
+            urls.add("http://example.com/" + page);
+        }
+        return urls;
+    }
+
+    private static List<String> sorted(List<String> urls) {
+        Collections.sort(urls);
+        return urls;
+    }
+
+    /**
+     * Records the batches it is passed. Workers can be made to block in the handler.
+     */
+    private static class RecordingHandler implements BatchingSeoFilterEventHandler {
+        private final List<List<SnapshotEvent>> batches = Lists.newArrayList();
+        private final List<String> threadNames = Lists.newArrayList();
+        private final Semaphore blocked = new Semaphore(0);
+        private final Semaphore handled = new Semaphore(0);
+        private volatile CountDownLatch unblocked = new CountDownLatch(0);
+        private volatile Thread unblockedCaller;
+
+        void block() {
+            unblocked = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            unblocked.countDown();
+        }
+
+        /**
+         * Lets the calling thread run the handler without blocking.
+         */
+        void unblockCaller() {
+            unblockedCaller = Thread.currentThread();
+        }
+
+        void awaitBlocked(int workers) throws InterruptedException {
+            assertTrue(blocked.tryAcquire(workers, 5, TimeUnit.SECONDS));
+        }
+
+        void awaitHandled(int events) throws InterruptedException {
+            assertTrue(handled.tryAcquire(events, 5, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public void afterSnapshots(List<SnapshotEvent> events) {
+            synchronized (this) {
+                batches.add(Lists.newArrayList(events));
+                threadNames.add(Thread.currentThread().getName());
+            }
+            if (Thread.currentThread() != unblockedCaller) {
+                blocked.release();
+                try {
+                    unblocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            handled.release(events.size());
+        }
+
+        synchronized List<List<SnapshotEvent>> getBatches() {
+            return Lists.newArrayList(batches);
+        }
+
+        synchronized List<String> getHandledUrls() {
+            return getHandledUrls(null);
+        }
+
+        synchronized List<String> getHandledUrls(String threadName) {
+            List<String> urls = Lists.newArrayList();
+            for (int i = 0; i < batches.size(); i++) {
+                if ((threadName == null) || threadName.equals(threadNames.get(i))) {
+                    for (SnapshotEvent event : batches.get(i)) {
+                        urls.add(event.getUrl());
+                    }
+                }
+            }
+            return urls;
+        }
+
+        @Override
+        public SnapshotResult beforeSnapshot(HttpServletRequest clientRequest) {
+            return null;
+        }
+
+        @Override
+        public void afterSnapshot(HttpServletRequest clientRequest, SnapshotResult result) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+public class SnapshotPrefetcherTest {
+
+    private static final URI PAGE = URI.create("http://example.com/a/page");
+
+    @Test
+    public void resolvesSameOriginLinks() {
+        assertEquals("http://example.com/a/next?p=2", SnapshotPrefetcher.resolveLink(PAGE, "next?p=2"));
+        assertEquals("http://example.com/b", SnapshotPrefetcher.resolveLink(PAGE, "/b#section"));
+        assertNull(SnapshotPrefetcher.resolveLink(PAGE, "http://other.com/"));
+        assertNull(SnapshotPrefetcher.resolveLink(PAGE, "https://example.com/"));
+    }
+
+    @Test
+    public void escapesHashbangFragmentsLikeCrawlers() {
+        assertEquals("http://example.com/?_escaped_fragment_=/products/1",
+                SnapshotPrefetcher.resolveLink(PAGE, "/#!/products/1"));
+        assertEquals("http://example.com/?q=x&_escaped_fragment_=/a%2520b%26c=d%2Be",
+                SnapshotPrefetcher.resolveLink(PAGE, "/?q=x#!/a%20b&c=d+e"));
+        assertEquals("%C3%A9%20%23", SnapshotPrefetcher.escapeFragment("é #"));
+    }
+}
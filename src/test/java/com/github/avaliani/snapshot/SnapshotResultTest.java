@@ -0,0 +1,150 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class SnapshotResultTest {
+
+    private static Map<String, List<String>> headers(String... namesAndValues) {
+        Map<String, List<String>> headers = Maps.newLinkedHashMap();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], Lists.newArrayList(namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+
+    private static byte[] serialize(SnapshotResult result) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        result.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static SnapshotResult deserialize(byte[] bytes, int maxBodyLength) throws IOException {
+        return SnapshotResult.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), maxBodyLength);
+    }
+
+    @Test
+    public void normalizesHeaders() {
+        Map<String, List<String>> responseHeaders = headers("Content-Type", "text/html; charset=UTF-8",
+                "Content-Length", "10", "Connection", "close", "X-Page", "1");
+        responseHeaders.put(null, Lists.newArrayList("HTTP/1.1 200 OK"));
+        SnapshotResult result = new SnapshotResult("café", responseHeaders);
+        assertEquals(2, result.getHeaderCount());
+        assertEquals("Content-Type", result.getHeaderName(0));
+        assertEquals("X-Page", result.getHeaderName(1));
+        assertEquals("UTF-8", result.getCharacterEncoding());
+        assertEquals(5, result.getContentLength());
+        assertSame(result.getHeaders(), new SnapshotResult(new byte[0], responseHeaders).getHeaders());
+    }
+
+    @Test
+    public void fallsBackToLatin1ForUnsupportedCharsets() {
+        for (String charset : Lists.newArrayList("no-such-charset", "bad charset name")) {
+            SnapshotResult result = new SnapshotResult("café",
+                    headers("Content-Type", "text/html; charset=" + charset));
+            assertEquals("ISO-8859-1", result.getCharacterEncoding());
+            assertEquals(4, result.getContentLength());
+            assertEquals("café", result.getSnapshot());
+        }
+    }
+
+    @Test
+    public void dropsHeadersByName() {
+        SnapshotResult.Headers headers = new SnapshotResult(new byte[0],
+                headers("Server-Timing", "provider;dur=1", "X-Page", "1")).getHeaders();
+        SnapshotResult.Headers withoutTiming = headers.without("server-timing");
+        assertEquals(1, withoutTiming.size());
+        assertEquals("X-Page", withoutTiming.getName(0));
+        assertSame(withoutTiming, withoutTiming.without("Server-Timing"));
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        byte[] body = new byte[200000];
+        Arrays.fill(body, (byte) 'x');
+        SnapshotResult result = new SnapshotResult(body, headers("Content-Type", "text/html", "X-Page", "1"));
+        SnapshotResult copy = deserialize(serialize(result), SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+        assertEquals(result, copy);
+        assertSame(result.getHeaders(), copy.getHeaders());
+    }
+
+    @Test
+    public void rejectsTruncatedInput() throws IOException {
+        byte[] serialized = serialize(new SnapshotResult(new byte[100000], headers("X-Page", "1")));
+        for (int length : new int[] {0, 3, 10, serialized.length - 1}) {
+            try {
+                deserialize(Arrays.copyOf(serialized, length), SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+                fail("Accepted " + length + " bytes");
+            } catch (EOFException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOversizedInput() throws IOException {
+        byte[] serialized = serialize(new SnapshotResult(new byte[1000], headers("X-Page", "1")));
+        try {
+            deserialize(serialized, 999);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeInt(Integer.MAX_VALUE);
+        try {
+            deserialize(bytes.toByteArray(), SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // A declared length the input doesn't have fails without allocating it.
+        bytes.reset();
+        out.writeByte(1);
+        out.writeInt(0);
+        out.writeInt(SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+        try {
+            deserialize(bytes.toByteArray(), SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+            fail();
+        } catch (EOFException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void dropsInjectedHeaders() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeInt(3);
+        for (String nameOrValue : new String[] {"Content-Length", "0", "Transfer-Encoding", "chunked", "X-Page", "1"}) {
+            out.writeUTF(nameOrValue);
+        }
+        out.writeInt(2);
+        out.write(new byte[] {'o', 'k'});
+        SnapshotResult result = deserialize(bytes.toByteArray(), SnapshotResult.DEFAULT_MAX_BODY_LENGTH);
+        assertEquals(1, result.getHeaderCount());
+        assertEquals("X-Page", result.getHeaderName(0));
+        assertEquals("ok", result.getSnapshot());
+    }
+}
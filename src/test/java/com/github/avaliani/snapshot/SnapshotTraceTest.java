@@ -0,0 +1,147 @@
+package com.github.avaliani.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class SnapshotTraceTest {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String PARENT_SPAN_ID = "00f067aa0ba902b7";
+    private static final String TRACEPARENT = "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01";
+
+    private final RecordingTracer tracer = new RecordingTracer();
+
+    @Test
+    public void continuesTheCrawlersTrace() {
+        SnapshotTrace trace = new SnapshotTrace(TRACEPARENT, tracer);
+        assertEquals(TRACE_ID, trace.getTraceId());
+        assertEquals(PARENT_SPAN_ID, trace.getParentSpanId());
+        assertTrue(trace.getSpanId().matches("[0-9a-f]{16}"));
+        assertFalse(trace.getSpanId().equals(PARENT_SPAN_ID));
+    }
+
+    @Test
+    public void startsAnUnsampledTraceWithoutAValidTraceparent() {
+        String[] traceparents = {
+            null,
+            "garbage",
+            "ff-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01",
+            "00-00000000000000000000000000000000-" + PARENT_SPAN_ID + "-01",
+            "00-" + TRACE_ID + "-0000000000000000-01",
+            "00-" + TRACE_ID.toUpperCase() + "-" + PARENT_SPAN_ID + "-01",
+        };
+        for (String traceparent : traceparents) {
+            SnapshotTrace trace = new SnapshotTrace(traceparent, tracer);
+            assertTrue(trace.getTraceId().matches("[0-9a-f]{32}"));
+            assertFalse(trace.getTraceId().equals(TRACE_ID));
+            assertNull(trace.getParentSpanId());
+            assertTrue(trace.newChildTraceparent().endsWith("-00"));
+        }
+    }
+
+    @Test
+    public void childTraceparentHasANewSpanOfTheSameTrace() {
+        SnapshotTrace trace = new SnapshotTrace(TRACEPARENT, tracer);
+        String child = trace.newChildTraceparent();
+        assertTrue(child, child.matches("00-" + TRACE_ID + "-[0-9a-f]{16}-01"));
+        String childSpanId = child.split("-")[2];
+        assertEquals(childSpanId, trace.getChildSpanId());
+        assertFalse(childSpanId.equals(trace.getSpanId()));
+        assertFalse(childSpanId.equals(PARENT_SPAN_ID));
+        assertFalse(trace.newChildTraceparent().equals(child));
+    }
+
+    @Test
+    public void reportsSpansWithTheirChildSpan() {
+        SnapshotTrace trace = new SnapshotTrace(TRACEPARENT, tracer);
+        trace.addSpan("cache", System.nanoTime());
+        trace.newChildTraceparent();
+        trace.addSpan("provider", System.nanoTime(), trace.getChildSpanId());
+        trace.finish();
+        assertEquals(Lists.newArrayList("cache", "provider", "filter"), tracer.stages);
+        assertEquals(Lists.newArrayList(null, trace.getChildSpanId(), null), tracer.childSpanIds);
+    }
+
+    @Test
+    public void noneRecordsNothing() {
+        SnapshotTrace.NONE.addSpan("provider", System.nanoTime());
+        SnapshotTrace.NONE.finish();
+        assertNull(SnapshotTrace.NONE.newChildTraceparent());
+        assertNull(SnapshotTrace.NONE.getChildSpanId());
+        assertTrue(SnapshotTrace.NONE.getServerTiming(), SnapshotTrace.NONE.getServerTiming().matches("total;dur=[0-9.]+"));
+    }
+
+    @Test
+    public void serverTimingListsTheStages() {
+        SnapshotTrace trace = new SnapshotTrace(null, null);
+        trace.addSpan("cache", System.nanoTime() - 2500000);
+        trace.addSpan("response", System.nanoTime());
+        String serverTiming = trace.getServerTiming();
+        assertTrue(serverTiming, serverTiming.matches(
+                "cache;dur=2\\.[0-9]+, response;dur=[0-9]+\\.[0-9]+, total;dur=[0-9]+\\.[0-9]+"));
+    }
+
+    @Test
+    public void serverTimingHeaderIsOnlyAddedWhenEnabled() {
+        Map<String, String> parameters = Maps.newHashMap();
+        SnapshotTrace trace = new SnapshotTrace(null, null);
+        trace.addSpan("cache", System.nanoTime());
+
+        Map<String, String> headers = Maps.newHashMap();
+        HostProfile disabled = new HostProfile("test", new SeoFilterConfig(new MapFilterConfig("seo", parameters)));
+        SeoFilter.addServerTimingHeader(recordingResponse(headers), disabled, trace);
+        assertTrue(headers.isEmpty());
+        disabled.destroy();
+
+        parameters.put("serverTimingHeader", "true");
+        HostProfile enabled = new HostProfile("test", new SeoFilterConfig(new MapFilterConfig("seo", parameters)));
+        SeoFilter.addServerTimingHeader(recordingResponse(headers), enabled, trace);
+        assertTrue(headers.get("Server-Timing"), headers.get("Server-Timing").matches(
+                "cache;dur=[0-9]+\\.[0-9]+, total;dur=[0-9]+\\.[0-9]+"));
+        enabled.destroy();
+    }
+
+    /**
+     * @return a response that only records the headers added to it.
+     */
+    private static HttpServletResponse recordingResponse(final Map<String, String> headers) {
+        return (HttpServletResponse) Proxy.newProxyInstance(SnapshotTraceTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("addHeader")) {
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static class RecordingTracer implements SnapshotTracer {
+        final List<String> stages = Lists.newArrayList();
+        final List<String> childSpanIds = Lists.newArrayList();
+
+        @Override
+        public void span(SnapshotTrace trace, String stage, long durationNanos, @Nullable String childSpanId) {
+            stages.add(stage);
+            childSpanIds.add(childSpanId);
+        }
+    }
+}